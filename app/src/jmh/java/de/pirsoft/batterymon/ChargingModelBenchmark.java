@@ -0,0 +1,122 @@
+package de.pirsoft.batterymon;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import de.pirsoft.batterymon.DataLogger.DataEntry;
+import de.pirsoft.batterymon.DataLogger.Status;
+
+/**
+ * Per-tick cost of the charging model.
+ *
+ * updateModel runs over a synthetic charging session that goes through
+ * the input limited, internal resistance limited and battery voltage
+ * limited phases, so all branches of the model are taken.
+ *
+ * The sources are laid out for the jmh gradle plugin (src/jmh/java).
+ * Allocation rates are reported by the gc profiler, i.E. with
+ * profilers = ['gc'] in the jmh block, or from the benchmark jar:
+ *   java -jar app-jmh.jar -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChargingModelBenchmark {
+	static final int SESSION_SAMPLES = 4096;
+
+	ChargingModel.CurveParams curveParams;
+	WindowedStats stats;
+	ChargingModel model;
+	SampleSnapshot session[];
+	float voltages[];
+	float charges[];
+	int pos;
+	long timestamp;
+
+	@Setup
+	public void setup() {
+		curveParams = new ChargingModel.CurveParams();
+		stats = ChargingModel.newStats();
+		model = new ChargingModel();
+		session = new SampleSnapshot[SESSION_SAMPLES];
+		voltages = new float[SESSION_SAMPLES];
+		charges = new float[SESSION_SAMPLES];
+		for (int i = 0; i < SESSION_SAMPLES; i++) {
+			float p = (float)i / SESSION_SAMPLES;
+			charges[i] = p * 10000;
+			voltages[i] = 3.4f + 0.85f * p;
+			session[i] = chargingSample(p);
+		}
+	}
+
+	/**
+	 * A sample at progress p (0..1) of a charging session on usb.
+	 */
+	static SampleSnapshot chargingSample(float p) {
+		SampleSnapshot s = new SampleSnapshot();
+		float current = p < 0.7f ? 1.4f : 1.4f * (1 - p) / 0.3f + 0.05f;
+		s.setStatus(DataEntry.Status, Status.Charging);
+		s.setFloat(DataEntry.BatteryCurrent, current);
+		s.setFloat(DataEntry.BatteryVoltage, 3.6f + 0.6f * Math.min(1, p / 0.7f));
+		s.setFloat(DataEntry.BMSChargeCounter, 2.3f * p);
+		s.setFloat(DataEntry.BMSResistance, 0.15f);
+		s.setFloat(DataEntry.QPNP_DC_Voltage, 0);
+		s.setBoolean(DataEntry.QPNP_DC_Present, false);
+		s.setFloat(DataEntry.QPNP_DC_CurrentMax, 0);
+		s.setFloat(DataEntry.USBVoltage, 4.95f - 0.3f * current);
+		s.setBoolean(DataEntry.USBPresent, true);
+		s.setFloat(DataEntry.USBCurrentMax, 1.5f);
+		s.setFloat(DataEntry.Temperature, 30);
+		return s;
+	}
+
+	private int next() {
+		int i = pos;
+		pos = (pos + 1) % SESSION_SAMPLES;
+		return i;
+	}
+
+	@Benchmark
+	public float uBat() {
+		return ChargingModel.U_bat(curveParams, charges[next()]);
+	}
+
+	@Benchmark
+	public float uBatInv() {
+		return ChargingModel.U_bat_inv(curveParams, voltages[next()]);
+	}
+
+	@Benchmark
+	public float uBatInvBisect() {
+		return ChargingModel.U_bat_inv_bisect(curveParams, voltages[next()]);
+	}
+
+	@Benchmark
+	public int updateModel() {
+		SampleSnapshot s = session[next()];
+		timestamp += 1000;
+		s.setTimestamp(timestamp);
+		model.updateModel(s);
+		return s.getSecondsRemaining();
+	}
+
+	@Benchmark
+	public float windowedStatsAdd() {
+		timestamp += 1000;
+		stats.add(timestamp, voltages[next()]);
+		return stats.getWindow(ChargingModel.SHORT_WINDOW).getMean();
+	}
+}
@@ -0,0 +1,123 @@
+package de.pirsoft.batterymon;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import de.pirsoft.batterymon.DataLogger.DataEntry;
+import de.pirsoft.batterymon.DataLogger.Status;
+
+/**
+ * Per-tick cost of sampling.
+ *
+ * readAndParse reads one value through SysfsPowerSupplySource from a
+ * file in a temporary directory, which is what every entry does on every
+ * tick. sample runs the whole Sampler over an in-memory source, so it
+ * measures parsing, decimation and filling the snapshot and log values
+ * without file system noise. logAppend adds one sample to a SampleLog,
+ * replacing the log line formatting of the old text log.
+ *
+ * None of them should allocate; check with -prof gc, see
+ * ChargingModelBenchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SamplingBenchmark {
+	File dir;
+	PowerSupplySource.Channel channel;
+	final byte buf[] = new byte[20];
+
+	Sampler sampler;
+	SampleSnapshot snapshot;
+	int logValues[];
+
+	SampleLog.Writer log;
+	long timestamp;
+
+	@Setup
+	public void setup() throws IOException {
+		dir = File.createTempFile("bench", "");
+		if (!dir.delete() || !dir.mkdir())
+			throw new IOException("Cannot create " + dir);
+		FakePowerSupplySource files = new FakePowerSupplySource(dir);
+		files.set("battery/current_now", "-351234");
+		channel = new SysfsPowerSupplySource(dir).open("battery/current_now");
+
+		ScriptedPowerSupplySource source = new ScriptedPowerSupplySource();
+		source.set(DataEntry.Status, Status.Charging);
+		source.set(DataEntry.BatteryCurrent, 1234567);
+		source.set(DataEntry.BatteryVoltage, 4012345);
+		source.set(DataEntry.BMSChargeCounter, 1500000);
+		source.set(DataEntry.BMSResistance, 150000);
+		source.set(DataEntry.QPNP_DC_Voltage, 0);
+		source.set(DataEntry.QPNP_DC_Present, false);
+		source.set(DataEntry.QPNP_DC_CurrentMax, 0);
+		source.set(DataEntry.USBVoltage, 4912345);
+		source.set(DataEntry.USBPresent, true);
+		source.set(DataEntry.USBCurrentMax, 1500000);
+		source.set(DataEntry.Temperature, 305);
+		source.set(DataEntry.BatteryCapacity, 55);
+		sampler = new Sampler(source);
+		snapshot = new SampleSnapshot();
+		SampleLog.Channel channels[] = sampler.getLogChannels();
+		logValues = new int[channels.length];
+		sampler.updateStatus();
+		sampler.sample(snapshot, logValues);
+
+		timestamp = System.currentTimeMillis();
+		log = new SampleLog.Writer(new File(dir, "bench.log"), channels, timestamp, 60);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		log.close();
+		channel.close();
+		sampler.close();
+		deleteTree(dir);
+	}
+
+	private static void deleteTree(File f) {
+		File children[] = f.listFiles();
+		if (children != null) {
+			for (File c : children)
+				deleteTree(c);
+		}
+		//noinspection ResultOfMethodCallIgnored
+		f.delete();
+	}
+
+	@Benchmark
+	public int readAndParse() throws IOException {
+		return Sampler.parseRaw(buf, channel.read(buf));
+	}
+
+	@Benchmark
+	public float sample() {
+		sampler.subSample();
+		sampler.sample(snapshot, logValues);
+		return snapshot.getFloat(DataEntry.BatteryCurrent);
+	}
+
+	@Benchmark
+	public long logAppend() throws IOException {
+		timestamp += 1000;
+		log.append(timestamp, logValues);
+		return timestamp;
+	}
+}
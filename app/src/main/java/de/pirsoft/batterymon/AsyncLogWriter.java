@@ -0,0 +1,225 @@
+package de.pirsoft.batterymon;
+
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes samples to a SegmentedLog on its own thread.
+ *
+ * Samples are copied into a bounded queue of preallocated slots, so
+ * offer() never blocks and never allocates. The writer thread waits until
+ * either batchRecords samples are queued or the oldest queued sample is
+ * batchMillis old, and writes all of them at once. Every syncEveryBatches
+ * batches, the file is synced to disk. If the queue is full because the
+ * disk is slow, new samples are dropped and counted.
+ *
+ * The written samples are also added to the HistoryPyramid, if there is
+ * one, so its file writes stay off the sampling thread as well.
+ */
+class AsyncLogWriter implements Runnable {
+	static final String TAG = "Batterymon.LogWriter";
+
+	private final File dir;
+	private final SampleLog.Channel channels[];
+	private final int batchRecords;
+	private final long batchNanos;
+	private final int syncEveryBatches;
+
+	private final long timestamps[];
+	private final int values[][];
+	private final int secondsRemaining[];
+	private int head = 0;
+	private int count = 0;
+	private long oldestQueuedNanos;
+	private boolean closing = false;
+	private final Thread thread;
+
+	private SegmentedLog writer;
+	@Nullable
+	private final HistoryPyramid history;
+	private int batchesSinceSync = 0;
+
+	//statistics, guarded by this
+	private long written = 0;
+	private long dropped = 0;
+	private long batches = 0;
+	private long syncs = 0;
+	private int maxQueued = 0;
+	private long maxWriteNanos = 0;
+
+	AsyncLogWriter(File dir, SampleLog.Channel channels[], int queueCapacity,
+		       int batchRecords, long batchMillis, int syncEveryBatches,
+		       @Nullable HistoryPyramid history) {
+		this.dir = dir;
+		this.history = history;
+		this.channels = channels;
+		this.batchRecords = Math.min(batchRecords, queueCapacity);
+		this.batchNanos = batchMillis * 1000000L;
+		this.syncEveryBatches = syncEveryBatches;
+		timestamps = new long[queueCapacity];
+		values = new int[queueCapacity][channels.length];
+		secondsRemaining = new int[queueCapacity];
+		thread = new Thread(this, TAG);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Queue a sample. values is copied, the caller can reuse it.
+	 * @param secondsRemaining the model result for the history, see
+	 * SampleSnapshot.getTimeRemaining()
+	 * @return false if the sample was dropped because the queue is full
+	 */
+	synchronized boolean offer(long timestamp, int values[], int secondsRemaining) {
+		if (closing)
+			return false;
+		if (count == timestamps.length) {
+			if (dropped++ == 0)
+				LogSink.w(TAG, "Log queue full, dropping samples");
+			return false;
+		}
+		int slot = (head + count) % timestamps.length;
+		timestamps[slot] = timestamp;
+		System.arraycopy(values, 0, this.values[slot], 0, channels.length);
+		this.secondsRemaining[slot] = secondsRemaining;
+		if (count == 0)
+			oldestQueuedNanos = System.nanoTime();
+		count++;
+		if (count > maxQueued)
+			maxQueued = count;
+		if (count >= batchRecords)
+			notify();
+		return true;
+	}
+
+	/**
+	 * Write out everything that is queued, sync and stop the writer thread.
+	 */
+	void close() {
+		synchronized (this) {
+			closing = true;
+			notify();
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void run() {
+		while (true) {
+			int start;
+			int n;
+			synchronized (this) {
+				try {
+					while (!closing) {
+						if (count >= batchRecords)
+							break;
+						if (count == 0) {
+							wait();
+							continue;
+						}
+						long waitNanos = batchNanos - (System.nanoTime() - oldestQueuedNanos);
+						if (waitNanos <= 0)
+							break;
+						wait(waitNanos / 1000000L + 1);
+					}
+				} catch (InterruptedException e) {
+					closing = true;
+				}
+				if (closing && count == 0)
+					break;
+				start = head;
+				n = count;
+			}
+			/* the slots from start to start+n are not touched by offer()
+			   until count is reduced below */
+			long writeStart = System.nanoTime();
+			int appended = writeBatch(start, n);
+			updateHistory(start, appended);
+			long writeNanos = System.nanoTime() - writeStart;
+			synchronized (this) {
+				head = (start + n) % timestamps.length;
+				count -= n;
+				written += appended;
+				dropped += n - appended;
+				if (writeNanos > maxWriteNanos)
+					maxWriteNanos = writeNanos;
+				batches++;
+				if (count > 0)
+					oldestQueuedNanos = System.nanoTime();
+			}
+		}
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				LogSink.e(TAG, "Error closing log file", e);
+			}
+		}
+		if (history != null) {
+			try {
+				history.flush();
+				history.close();
+			} catch (IOException e) {
+				LogSink.e(TAG, "Error closing history", e);
+			}
+		}
+		LogSink.i(TAG, getStatistics());
+	}
+
+	/**
+	 * @return the number of samples from start on that made it into the
+	 * log. If only flushing or syncing fails, that is all of them; the log
+	 * keeps them buffered and writes them with the next batch.
+	 */
+	private int writeBatch(int start, int n) {
+		int appended = 0;
+		try {
+			if (writer == null) {
+				LogSink.i(TAG, "Starting logging to " + dir.toString());
+				writer = new SegmentedLog(dir, channels, batchRecords);
+			}
+			for (; appended < n; appended++) {
+				int slot = (start + appended) % timestamps.length;
+				writer.append(timestamps[slot], values[slot]);
+			}
+			writer.flush();
+			batchesSinceSync++;
+			if (batchesSinceSync >= syncEveryBatches) {
+				writer.sync();
+				batchesSinceSync = 0;
+				synchronized (this) {
+					syncs++;
+				}
+			}
+		} catch (IOException e) {
+			LogSink.e(TAG, "Error writing to log file", e);
+		}
+		return appended;
+	}
+
+	private void updateHistory(int start, int n) {
+		if (history == null || n == 0)
+			return;
+		try {
+			for (int i = 0; i < n; i++) {
+				int slot = (start + i) % timestamps.length;
+				history.add(timestamps[slot], values[slot], secondsRemaining[slot]);
+			}
+			history.flush();
+		} catch (IOException e) {
+			LogSink.e(TAG, "Error writing history", e);
+		}
+	}
+
+	synchronized String getStatistics() {
+		return "written " + written + ", dropped " + dropped +
+			", batches " + batches + ", syncs " + syncs +
+			", max queued " + maxQueued +
+			", slowest write " + maxWriteNanos / 1000000L + "ms";
+	}
+}
@@ -7,12 +7,10 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Handler;
 import android.os.IBinder;
-import android.support.annotation.NonNull;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
-import java.text.DecimalFormat;
-
 import de.pirsoft.batterymon.ChargingModel.State;
 import de.pirsoft.batterymon.DataLogger.DataEntry;
 import de.pirsoft.batterymon.DataLogger.Status;
@@ -23,9 +21,92 @@ public class BatteryPredictor extends Service {
 	static final int FULL_NOTIFICATIONID = 2;
 	boolean full_notification_shown = false;
 
+	/* the charging notification is updated at most this often, unless it
+	   appears, disappears or switches between charging and discharging */
+	static final long MIN_NOTIFY_INTERVAL = 30000;
+
+	/* what the charging notification shows */
+	static final int SHOWN_UNKNOWN = -1;
+	static final int SHOWN_NONE = 0;
+	static final int SHOWN_CHARGING = 1;
+	static final int SHOWN_DISCHARGING = 2;
+
+	private int shown = SHOWN_UNKNOWN;
+	private String shownTitle;
+	private String shownText;
+	private long shownAt;
+	/* the notification content is rendered into these, and only turned
+	   into Strings when it is posted */
+	private final StringBuilder title = new StringBuilder();
+	private final StringBuilder text = new StringBuilder();
+	private final TimeRounding rounding = new TimeRounding();
+	private final SampleSnapshot snapshot = new SampleSnapshot();
+
+	/* resources, looked up once */
+	private String percentCharged;
+	private String charging;
+	private String chargingFor;
+	private String dischargingFor;
+	private String remaining;
+	private String stateTexts[];
+
 	public BatteryPredictor() {
 	}
 
+	/**
+	 * Rounds the time remaining to a granularity that fits its
+	 * uncertainty, so the displayed time does not change with every
+	 * estimate.
+	 *
+	 * Both have hysteresis: a finer granularity is only taken once the
+	 * uncertainty is clearly below its limit, and the shown time only moves
+	 * once the estimate is more than 3/4 granularity away from it. An
+	 * estimate near a rounding boundary or an uncertainty near a limit
+	 * therefore does not flip the display back and forth.
+	 */
+	static class TimeRounding {
+		static final int GRANULARITIES[] = { 1, 5, 15, 60, 5 * 60, 15 * 60, 3600, 5 * 3600 };
+		/* granularity i is used while the uncertainty is below LIMITS[i] */
+		static final int LIMITS[] = { 10, 30, 60, 10 * 60, 30 * 60, 60 * 60, 10 * 3600 };
+		/* a finer granularity needs the uncertainty this far below its
+		   limit */
+		static final float FINER_MARGIN = 0.8f;
+
+		private int level = -1;
+		private int shownSeconds = -1;
+
+		void reset() {
+			level = -1;
+			shownSeconds = -1;
+		}
+
+		/**
+		 * @return the seconds to show
+		 */
+		int update(int seconds, int uncertainty) {
+			int target = 0;
+			while (target < LIMITS.length && uncertainty >= LIMITS[target])
+				target++;
+			if (level < 0 || target > level) {
+				level = target;
+				shownSeconds = -1;
+			} else if (target < level) {
+				//finer only with a margin
+				int finer = level;
+				while (finer > target && uncertainty < LIMITS[finer - 1] * FINER_MARGIN)
+					finer--;
+				if (finer != level) {
+					level = finer;
+					shownSeconds = -1;
+				}
+			}
+			int granularity = GRANULARITIES[level];
+			if (shownSeconds < 0 || Math.abs(seconds - shownSeconds) * 4 > granularity * 3)
+				shownSeconds = ((seconds + granularity / 2) / granularity) * granularity;
+			return shownSeconds;
+		}
+	}
+
 	private class MyAdvancer implements Runnable
 	{
 		void sched()
@@ -57,6 +138,23 @@ public class BatteryPredictor extends Service {
 	Handler myHandler = new Handler();
 	MyAdvancer advancer = null;
 
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		percentCharged = getString(R.string.percent_charged);
+		charging = getString(R.string.charging);
+		chargingFor = getString(R.string.charging_for);
+		dischargingFor = getString(R.string.discharging_for);
+		remaining = getString(R.string.remaining);
+		stateTexts = new String[State.values().length];
+		stateTexts[State.NoSource.ordinal()] = getString(R.string.state_no_supply);
+		stateTexts[State.Exception.ordinal()] = getString(R.string.state_exception);
+		stateTexts[State.InputVoltageLimit.ordinal()] = getString(R.string.state_input_voltage_limit);
+		stateTexts[State.InputCurrentLimit.ordinal()] = getString(R.string.state_input_current_limit);
+		stateTexts[State.InternalResistanceLimit.ordinal()] = getString(R.string.state_internal_resistance_limit);
+		stateTexts[State.BatteryVoltageLimit.ordinal()] = getString(R.string.state_battery_voltage_limit);
+	}
+
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
 		//handleCommand(intent);
@@ -76,107 +174,114 @@ public class BatteryPredictor extends Service {
 		return null;
 	}
 
-	private static DecimalFormat formatter2Digit = new DecimalFormat("00");
+	private static void appendTwoDigits(StringBuilder sb, int value) {
+		sb.append((char)('0' + value / 10));
+		sb.append((char)('0' + value % 10));
+	}
 
-	@NonNull
-	private String formatSecondsRemaining(int seconds) {
+	private static void appendSecondsRemaining(StringBuilder sb, int seconds) {
 		int hours = seconds / 3600;
 		seconds -= hours * 3600;
 		int minutes = seconds / 60;
 		seconds -= minutes * 60;
-		StringBuilder sb = new StringBuilder();
 		if (hours != 0 || minutes != 0) {
 			sb.append(hours);
-			sb.append(":");
-			sb.append(formatter2Digit.format(minutes));
+			sb.append(':');
+			appendTwoDigits(sb, minutes);
 			if (seconds != 0) {
-				sb.append(":");
-				sb.append(formatter2Digit.format(seconds));
-				sb.append("s");
+				sb.append(':');
+				appendTwoDigits(sb, seconds);
+				sb.append('s');
 			}
 		} else {
 			sb.append(seconds);
-			sb.append("s");
+			sb.append('s');
 		}
-		return sb.toString();
+	}
+
+	private void appendCapacity(SampleSnapshot snapshot) {
+		if (snapshot.isValid(DataEntry.BatteryCapacity)) {
+			text.append((int)(snapshot.getFloat(DataEntry.BatteryCapacity) * 100));
+			text.append(percentCharged);
+		}
+	}
+
+	private void appendTitle(String prefix, int seconds) {
+		title.append(prefix);
+		title.append(' ');
+		appendSecondsRemaining(title, seconds);
+		title.append(' ');
+		title.append(remaining);
 	}
 
 	private void checkBattery() {
-		State state = DataLogger.getModel().getState();
+		DataLogger.readSnapshot(snapshot);
+		State state = snapshot.getModelState();
 		NotificationManager mNotificationManager =
 			(NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+		//a previous instance may have left notifications behind
+		boolean first = shown == SHOWN_UNKNOWN;
+		int show;
+		title.setLength(0);
+		text.setLength(0);
 		if (state != State.NotCharging) {
-			Float capacity = (Float)DataLogger.getStoredValue(DataEntry.BatteryCapacity);
-			StringBuilder text = new StringBuilder();
-			if (capacity != null) {
-				text.append((int)(capacity * 100));
-				text.append(getString(R.string.percent_charged));
-			}
-			switch(state) {
-				case NoSource:
-					text.append(getString(R.string.state_no_supply));
-					break;
-				case Exception:
-					text.append(getString(R.string.state_exception));
-					break;
-				case InputVoltageLimit:
-					text.append(getString(R.string.state_input_voltage_limit));
-					break;
-				case InputCurrentLimit:
-					text.append(getString(R.string.state_input_current_limit));
-					break;
-				case InternalResistanceLimit:
-					text.append(getString(R.string.state_internal_resistance_limit));
-					break;
-				case BatteryVoltageLimit:
-					text.append(getString(R.string.state_battery_voltage_limit));
-					break;
-			}
-			String title = getString(R.string.charging);
-			int seconds = DataLogger.getModel().getSecondsRemaining();
-			int uncertainty = DataLogger.getModel().getSecondsRemainingUncertainty();
-			if (seconds > 0 && uncertainty >= 0) {
-				int granularity;
-				if (uncertainty < 10) {
-					granularity = 1;
-				} else if (uncertainty < 30) {
-					granularity = 5;
-				} else if (uncertainty < 60) {
-					granularity = 15;
-				} else if (uncertainty < 10 * 60) {
-					//noinspection PointlessArithmeticExpression
-					granularity = 1 * 60;
-				} else if (uncertainty < 30 * 60) {
-					granularity = 5 * 60;
-				} else if (uncertainty < 60 * 60) {
-					granularity = 15 * 60;
-				} else if (uncertainty < 10 * 3600) {
-					//noinspection PointlessArithmeticExpression
-					granularity = 1 * 3600;
-				} else {
-					granularity = 5 * 3600;
-				}
-				seconds = ((seconds + granularity / 2) / granularity) * granularity;
-				title = getString(R.string.charging_for) + " " +
-					formatSecondsRemaining(seconds) + " " +
-					getString(R.string.remaining);
+			show = SHOWN_CHARGING;
+			appendCapacity(snapshot);
+			String stateText = stateTexts[state.ordinal()];
+			if (stateText != null)
+				text.append(stateText);
+			int seconds = snapshot.getSecondsRemaining();
+			int uncertainty = snapshot.getSecondsRemainingUncertainty();
+			if (shown != SHOWN_CHARGING)
+				rounding.reset();
+			if (seconds > 0 && uncertainty >= 0)
+				appendTitle(chargingFor, rounding.update(seconds, uncertainty));
+			else
+				title.append(charging);
+		} else if (snapshot.getDischargeSecondsRemaining() >= 0 &&
+			snapshot.getDischargeSecondsRemainingUncertainty() >= 0) {
+			show = SHOWN_DISCHARGING;
+			appendCapacity(snapshot);
+			if (shown != SHOWN_DISCHARGING)
+				rounding.reset();
+			appendTitle(dischargingFor, rounding.update(snapshot.getDischargeSecondsRemaining(),
+				snapshot.getDischargeSecondsRemainingUncertainty()));
+		} else {
+			show = SHOWN_NONE;
+		}
+
+		long now = SystemClock.elapsedRealtime();
+		if (show == SHOWN_NONE) {
+			if (shown != SHOWN_NONE) {
+				//remove notification
+				mNotificationManager.cancel(CHARGING_NOTIFICATIONID);
+				shown = SHOWN_NONE;
+				shownTitle = null;
+				shownText = null;
 			}
+		} else if (show != shown || now - shownAt >= MIN_NOTIFY_INTERVAL) {
+			if (show != shown ||
+				!shownTitle.contentEquals(title) || !shownText.contentEquals(text)) {
+				shown = show;
+				shownTitle = title.toString();
+				shownText = text.toString();
+				shownAt = now;
 
-			//put up notification
-			NotificationCompat.Builder mBuilder =
-                                new NotificationCompat.Builder(this)
-	                                .setSmallIcon(R.drawable.notification_icon)
-	                                .setContentTitle(title)
-	                                .setContentText(text)
-					.setLocalOnly(false) //todo: make sure this is wanted behaviour and interacts well(i.E. does not popup just because the text changed) currently, this is not getting picked up.
-					.setOngoing(true)
-					.setVisibility(NotificationCompat.VISIBILITY_PUBLIC);
-			mNotificationManager.notify(CHARGING_NOTIFICATIONID, mBuilder.build());
-		} else {
-			//remove notification
-			mNotificationManager.cancel(CHARGING_NOTIFICATIONID);
+				//put up notification; the discharge estimate uses the same one
+				NotificationCompat.Builder mBuilder =
+					new NotificationCompat.Builder(this)
+						.setSmallIcon(R.drawable.notification_icon)
+						.setContentTitle(shownTitle)
+						.setContentText(shownText)
+						.setLocalOnly(false) //todo: make sure this is wanted behaviour and interacts well(i.E. does not popup just because the text changed) currently, this is not getting picked up.
+						.setOngoing(true)
+						.setOnlyAlertOnce(true)
+						.setVisibility(NotificationCompat.VISIBILITY_PUBLIC);
+				mNotificationManager.notify(CHARGING_NOTIFICATIONID, mBuilder.build());
+			}
 		}
-		Status status = (Status)DataLogger.getStoredValue(DataEntry.Status);
+
+		Status status = snapshot.getStatus(DataEntry.Status);
 		if (status == Status.Full) {
 			if (!full_notification_shown) {
 				full_notification_shown = true;
@@ -189,7 +294,7 @@ public class BatteryPredictor extends Service {
 						.setVisibility(NotificationCompat.VISIBILITY_PUBLIC);
 				mNotificationManager.notify(FULL_NOTIFICATIONID, mBuilder.build());
 			}
-		} else {
+		} else if (full_notification_shown || first) {
 			mNotificationManager.cancel(FULL_NOTIFICATIONID);
 			full_notification_shown = false;
 		}
@@ -0,0 +1,226 @@
+package de.pirsoft.batterymon;
+
+import de.pirsoft.batterymon.ChargingModel.CurveParams;
+
+/**
+ * Extended Kalman filter for the state of the battery.
+ *
+ * The state is the accumulated discharge q (in As, the argument of
+ * ChargingModel.U_bat) and the battery resistance R. Between samples, q
+ * follows the charge that went in or out, counted by the BMS charge
+ * counter, or integrated from the current where the counter is not
+ * usable. The terminal voltage is measured as U_bat(q) + I * R, the
+ * resistance directly as reported by the BMS. Current is positive while
+ * charging.
+ *
+ * The open circuit voltage U_bat(q) follows from the state, so unlike
+ * averaging voltage and current, a step in the load shows up in the
+ * resistance term right away instead of smearing over the averaging
+ * window.
+ *
+ * All state is in primitive fields, update() does not allocate. The curve
+ * is evaluated twice per update, at the predicted q and next to it for
+ * the slope; the open circuit voltage after the correction follows from
+ * that linearization, and is kept for the getters.
+ */
+class BatteryStateEstimator {
+	/* measurement noise, as standard deviations. The voltage one includes
+	   the misfit of the curve and polarisation. */
+	static final double VOLTAGE_NOISE = 0.02; //V
+	static final double RESISTANCE_NOISE = 0.05; //Ohm
+	/* process noise: current error integrated into q, drift of R */
+	static final double CURRENT_NOISE = 0.05; //A
+	static final double RESISTANCE_DRIFT = 1e-6; //Ohm^2/s
+	/* initial uncertainty */
+	static final double INITIAL_CHARGE_VARIANCE = 3600 * 3600; //As^2
+	static final double INITIAL_RESISTANCE_VARIANCE = 0.1 * 0.1; //Ohm^2
+	/* the charge counter is used for the prediction if it agrees with the
+	   integrated current within this fraction, or this many As */
+	static final double COUNTER_TOLERANCE = 0.5;
+	static final double COUNTER_TOLERANCE_ABS = 2;
+	/* samples further apart start the estimate over */
+	static final long MAX_GAP = 3600 * 1000;
+	/* step for the slope of the curve */
+	static final float SLOPE_STEP = 1; //As
+	/* the linearization is used for the open circuit voltage if the
+	   correction moved q less than this, else the curve is evaluated */
+	static final double LINEAR_RANGE = 10; //As
+
+	private final CurveParams curve;
+
+	private boolean initialized = false;
+	private long lastTimestamp;
+	private float lastCurrent;
+	private float lastCounter;
+	private boolean lastCounterValid;
+
+	private double q;
+	private double r;
+	/* covariance of (q, r) */
+	private double p00, p01, p11;
+
+	/* the curve at the predicted q, and its slope there */
+	private double linearQ;
+	private double linearVoltage;
+	private double slope;
+	/* U_bat(q) after the last update */
+	private float openCircuitVoltage;
+
+	BatteryStateEstimator(CurveParams curve) {
+		this.curve = curve;
+	}
+
+	void reset() {
+		initialized = false;
+	}
+
+	/**
+	 * Advance by one sample.
+	 * @param current battery current in A, positive while charging
+	 * @param voltage battery terminal voltage in V
+	 * @param counter BMS charge counter in Ah, NaN if not available
+	 * @param resistance BMS battery resistance in Ohm, NaN if not available
+	 */
+	void update(long timestamp, float current, float voltage, float counter, float resistance) {
+		boolean counterValid = !Float.isNaN(counter);
+		boolean resistanceValid = !Float.isNaN(resistance) && resistance > 0;
+		if (!initialized || timestamp <= lastTimestamp ||
+			timestamp - lastTimestamp > MAX_GAP) {
+			r = resistanceValid ? resistance : 0.15;
+			q = ChargingModel.U_bat_inv(curve, (float)(voltage - current * r));
+			p00 = INITIAL_CHARGE_VARIANCE;
+			p01 = 0;
+			p11 = INITIAL_RESISTANCE_VARIANCE;
+			initialized = true;
+		} else {
+			predict((timestamp - lastTimestamp) * 1e-3, current, counter, counterValid);
+		}
+		lastTimestamp = timestamp;
+		lastCurrent = current;
+		lastCounter = counter;
+		lastCounterValid = counterValid;
+
+		linearize();
+		correctVoltage(current, voltage);
+		if (resistanceValid)
+			correctResistance(resistance);
+		openCircuitVoltage = curveAt(q);
+	}
+
+	private void predict(double dt, float current, float counter, boolean counterValid) {
+		//trapezoidal integration of the current
+		double charged = (lastCurrent + current) * 0.5 * dt;
+		double chargedVariance = CURRENT_NOISE * CURRENT_NOISE * dt * dt;
+		if (counterValid && lastCounterValid) {
+			double counted = (counter - lastCounter) * 3600.0;
+			if (Math.abs(counted - charged) <=
+				Math.max(Math.abs(charged) * COUNTER_TOLERANCE, COUNTER_TOLERANCE_ABS)) {
+				charged = counted;
+				//the counter does not drift with the sampling period
+				chargedVariance = Math.min(chargedVariance, COUNTER_TOLERANCE_ABS * COUNTER_TOLERANCE_ABS);
+			}
+		}
+		q -= charged;
+		if (q < 0)
+			q = 0;
+		p00 += chargedVariance;
+		p11 += RESISTANCE_DRIFT * dt;
+	}
+
+	/**
+	 * Evaluate the curve and its slope, by forward difference, at q.
+	 */
+	private void linearize() {
+		float at = (float)q;
+		float next = at + SLOPE_STEP;
+		float u = ChargingModel.U_bat(curve, at);
+		linearQ = at;
+		linearVoltage = u;
+		slope = (ChargingModel.U_bat(curve, next) - u) / (next - at);
+	}
+
+	private float curveAt(double q) {
+		double d = q - linearQ;
+		if (Math.abs(d) <= LINEAR_RANGE)
+			return (float)(linearVoltage + slope * d);
+		return ChargingModel.U_bat(curve, (float)q);
+	}
+
+	private void correctVoltage(float current, float voltage) {
+		double predicted = linearVoltage + current * r;
+		double h0 = slope;
+		double h1 = current;
+		//S = H P H' + R
+		double ph0 = p00 * h0 + p01 * h1;
+		double ph1 = p01 * h0 + p11 * h1;
+		double s = h0 * ph0 + h1 * ph1 + VOLTAGE_NOISE * VOLTAGE_NOISE;
+		double k0 = ph0 / s;
+		double k1 = ph1 / s;
+		double innovation = voltage - predicted;
+		q += k0 * innovation;
+		r += k1 * innovation;
+		if (q < 0)
+			q = 0;
+		//P = (I - K H) P
+		double n00 = p00 - k0 * ph0;
+		double n01 = p01 - k0 * ph1;
+		double n11 = p11 - k1 * ph1;
+		p00 = n00;
+		p01 = n01;
+		p11 = n11;
+	}
+
+	private void correctResistance(float resistance) {
+		double s = p11 + RESISTANCE_NOISE * RESISTANCE_NOISE;
+		double k0 = p01 / s;
+		double k1 = p11 / s;
+		double innovation = resistance - r;
+		q += k0 * innovation;
+		r += k1 * innovation;
+		if (q < 0)
+			q = 0;
+		double n00 = p00 - k0 * p01;
+		double n01 = p01 - k0 * p11;
+		double n11 = p11 - k1 * p11;
+		p00 = n00;
+		p01 = n01;
+		p11 = n11;
+	}
+
+	boolean isInitialized() {
+		return initialized;
+	}
+
+	/**
+	 * @return the accumulated discharge in As
+	 */
+	float getCharge() {
+		return (float)q;
+	}
+
+	/**
+	 * @return standard deviation of getCharge()
+	 */
+	float getChargeStdDev() {
+		return (float)Math.sqrt(Math.max(0, p00));
+	}
+
+	float getResistance() {
+		return (float)r;
+	}
+
+	/**
+	 * @return the open circuit voltage of the battery after the last
+	 * update
+	 */
+	float getOpenCircuitVoltage() {
+		return openCircuitVoltage;
+	}
+
+	/**
+	 * @return the terminal voltage expected at the given current
+	 */
+	float getTerminalVoltage(float current) {
+		return (float)(openCircuitVoltage + current * r);
+	}
+}
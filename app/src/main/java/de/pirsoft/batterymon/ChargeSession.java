@@ -0,0 +1,152 @@
+package de.pirsoft.batterymon;
+
+import de.pirsoft.batterymon.ChargingModel.State;
+import de.pirsoft.batterymon.DataLogger.DataEntry;
+import de.pirsoft.batterymon.DataLogger.Status;
+
+/**
+ * Records a charge session, from the start of charging until the battery
+ * reports full.
+ *
+ * For every recorded sample, the charge put in so far (integrated
+ * current), the battery voltage (terminal voltage minus current times BMS
+ * resistance), the current and whether the model was in the battery
+ * voltage limited phase are kept. Once the session completed, the
+ * accumulated discharge and the time remaining at every point are known
+ * by counting back from the end.
+ *
+ * At most maxPoints points are kept; when the recording is full, every
+ * other point is dropped and only every other sample recorded from then
+ * on. A session ends without completing if charging stops, a sample
+ * lacks values or samples are too far apart.
+ */
+class ChargeSession {
+	/* samples further apart than this end the session */
+	static final long MAX_GAP = 10 * 60 * 1000;
+
+	private final int maxPoints;
+	private final long times[];
+	private final float charged[];
+	private final float voltages[];
+	private final float currents[];
+	private final boolean limited[];
+	private int count;
+	private int stride;
+	private int skipped;
+	private boolean inSession = false;
+	private long lastTimestamp;
+	private float lastCurrent;
+	private double chargedSoFar;
+	private long end;
+
+	ChargeSession(int maxPoints) {
+		this.maxPoints = maxPoints;
+		times = new long[maxPoints];
+		charged = new float[maxPoints];
+		voltages = new float[maxPoints];
+		currents = new float[maxPoints];
+		limited = new boolean[maxPoints];
+	}
+
+	/**
+	 * Take the sample into account, after the model has been updated
+	 * with it.
+	 * @return true if the sample completed a session; its points are
+	 * available until the next call
+	 */
+	boolean update(SampleSnapshot sample, State state) {
+		Status status = sample.getStatus(DataEntry.Status);
+		long timestamp = sample.getTimestamp();
+		if (status == Status.Full) {
+			boolean completed = inSession;
+			inSession = false;
+			end = timestamp;
+			return completed;
+		}
+		if (status != Status.Charging ||
+			!sample.isValid(DataEntry.BatteryCurrent) ||
+			!sample.isValid(DataEntry.BatteryVoltage) ||
+			!sample.isValid(DataEntry.BMSResistance)) {
+			inSession = false;
+			return false;
+		}
+		float current = sample.getFloat(DataEntry.BatteryCurrent);
+		float voltage = sample.getFloat(DataEntry.BatteryVoltage) -
+			current * sample.getFloat(DataEntry.BMSResistance);
+		if (inSession && (timestamp <= lastTimestamp || timestamp - lastTimestamp > MAX_GAP))
+			inSession = false;
+		if (!inSession) {
+			inSession = true;
+			count = 0;
+			stride = 1;
+			skipped = 0;
+			chargedSoFar = 0;
+		} else {
+			chargedSoFar += (lastCurrent + current) * 0.5 * (timestamp - lastTimestamp) * 1e-3;
+		}
+		lastTimestamp = timestamp;
+		lastCurrent = current;
+
+		if (++skipped < stride)
+			return false;
+		skipped = 0;
+		if (count == maxPoints)
+			halve();
+		times[count] = timestamp;
+		charged[count] = (float)chargedSoFar;
+		voltages[count] = voltage;
+		currents[count] = current;
+		limited[count] = state == State.BatteryVoltageLimit;
+		count++;
+		return false;
+	}
+
+	private void halve() {
+		for (int i = 0; i < count / 2; i++) {
+			times[i] = times[2 * i];
+			charged[i] = charged[2 * i];
+			voltages[i] = voltages[2 * i];
+			currents[i] = currents[2 * i];
+			limited[i] = limited[2 * i];
+		}
+		count /= 2;
+		stride *= 2;
+	}
+
+	int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the charge put in over the whole session, in As
+	 */
+	double getTotalCharge() {
+		return chargedSoFar;
+	}
+
+	/**
+	 * @return the accumulated discharge at point i, in As
+	 */
+	float getDischarge(int i) {
+		return (float)(chargedSoFar - charged[i]);
+	}
+
+	float getVoltage(int i) {
+		return voltages[i];
+	}
+
+	float getCurrent(int i) {
+		return currents[i];
+	}
+
+	boolean isLimited(int i) {
+		return limited[i];
+	}
+
+	/**
+	 * @return time from point i until the battery was full, in s
+	 */
+	double getRemaining(int i) {
+		return (end - times[i]) * 1e-3;
+	}
+}
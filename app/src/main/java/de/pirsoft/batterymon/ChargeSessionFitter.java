@@ -0,0 +1,295 @@
+package de.pirsoft.batterymon;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import de.pirsoft.batterymon.ChargingModel.CurveParams;
+import de.pirsoft.batterymon.ChargingModel.State;
+import de.pirsoft.batterymon.ChargingModel.UBatLimitParams;
+
+/**
+ * Refines the battery curve and the battery voltage limit parameters of
+ * ChargingModel from completed charge sessions.
+ *
+ * Every completed ChargeSession gives the battery voltage over the
+ * accumulated discharge, and the time remaining at the points in the
+ * battery voltage limited phase. These are fed into recursive least
+ * squares fits of the parameters the curves are linear in (A, K1..K3 of
+ * U_bat, b and c of the remaining time, sb and sc of its uncertainty),
+ * with the others kept at their offline fitted values. Sessions that end
+ * before the battery is full are dropped. Recording is bounded to
+ * MAX_POINTS points, and fitting happens once per session.
+ *
+ * Refined parameters that give an implausible curve are not used; the
+ * fits start over from the stock values instead.
+ *
+ * file format:
+ *   int    magic ("BMFP")
+ *   short  version
+ *   int    completed sessions
+ *   the three fits, see RecursiveLeastSquares.write()
+ */
+class ChargeSessionFitter {
+	static final String TAG = "Batterymon.SessionFitter";
+	static final int MAGIC = 0x424d4650;
+	static final short VERSION = 1;
+
+	static final int MAX_POINTS = 512;
+	/* sessions with fewer points are not used */
+	static final int MIN_POINTS = 60;
+	/* the weight of older observations halves about every 1400 */
+	static final double FORGETTING = 0.9995;
+	/* relative uncertainty of the stock values, and the noise of the
+	   observations, for the initial covariance */
+	static final double STOCK_UNCERTAINTY = 0.1;
+	static final double VOLTAGE_NOISE = 0.01; //V
+	static final double TIME_NOISE = 300; //s
+	static final float MAX_CHARGE = 20*3600;
+
+	private final CurveParams curve;
+	private final UBatLimitParams limit;
+	private final CurveParams stockCurve = new CurveParams();
+	private final UBatLimitParams stockLimit = new UBatLimitParams();
+	private final RecursiveLeastSquares curveFit;
+	private final RecursiveLeastSquares limitFit;
+	private final RecursiveLeastSquares uncertaintyFit;
+	private int sessions = 0;
+	private File file;
+	private boolean learning = true;
+
+	private final ChargeSession session = new ChargeSession(MAX_POINTS);
+
+	private final double terms[] = new double[3];
+	private final double x4[] = new double[4];
+	private final double x2[] = new double[2];
+
+	ChargeSessionFitter(CurveParams curve, UBatLimitParams limit) {
+		this.curve = curve;
+		this.limit = limit;
+		curveFit = new RecursiveLeastSquares(stockCurveTheta(),
+			variances(stockCurveTheta(), VOLTAGE_NOISE), FORGETTING);
+		limitFit = new RecursiveLeastSquares(stockLimitTheta(),
+			variances(stockLimitTheta(), TIME_NOISE), FORGETTING);
+		uncertaintyFit = new RecursiveLeastSquares(stockUncertaintyTheta(),
+			variances(stockUncertaintyTheta(), TIME_NOISE), FORGETTING);
+	}
+
+	private double[] stockCurveTheta() {
+		return new double[] { stockCurve.A, stockCurve.K1, stockCurve.K2, stockCurve.K3 };
+	}
+
+	private double[] stockLimitTheta() {
+		return new double[] { 1 / stockLimit.b, stockLimit.c };
+	}
+
+	private double[] stockUncertaintyTheta() {
+		return new double[] { 1 / stockLimit.sb, stockLimit.sc };
+	}
+
+	private static double[] variances(double theta[], double noise) {
+		double v[] = new double[theta.length];
+		for (int i = 0; i < theta.length; i++) {
+			double sd = STOCK_UNCERTAINTY * theta[i] / noise;
+			v[i] = sd * sd;
+		}
+		return v;
+	}
+
+	/**
+	 * Take the sample into account, after the model has been updated
+	 * with it.
+	 */
+	void update(SampleSnapshot sample, State state) {
+		if (session.update(sample, state) && learning)
+			finish();
+	}
+
+	/**
+	 * While not learning, sessions are still recorded, but completed ones
+	 * are dropped instead of fitted, i.E. while replaying samples that
+	 * have been seen before.
+	 */
+	void setLearning(boolean learning) {
+		this.learning = learning;
+	}
+
+	private void finish() {
+		int count = session.getCount();
+		double total = session.getTotalCharge();
+		if (count < MIN_POINTS || total <= 0 || total > MAX_CHARGE)
+			return;
+		for (int i = 0; i < count; i++) {
+			ChargingModel.U_bat_terms(curve, session.getDischarge(i), terms);
+			x4[0] = 1;
+			x4[1] = terms[0];
+			x4[2] = terms[1];
+			x4[3] = terms[2];
+			curveFit.update(x4, session.getVoltage(i), 1);
+		}
+		for (int i = 0; i < count; i++) {
+			if (!session.isLimited(i))
+				continue;
+			float current = session.getCurrent(i);
+			double g = Math.pow(current, limit.d) * limit.e + current + limit.a;
+			if (!(g > 0))
+				continue;
+			double remaining = session.getRemaining(i);
+			x2[0] = Math.log(g);
+			x2[1] = 1;
+			double error = Math.abs(remaining - limitFit.predict(x2));
+			limitFit.update(x2, remaining, 1);
+			if (current + limit.sa > 0) {
+				x2[0] = Math.log(current + limit.sa);
+				x2[1] = 1;
+				uncertaintyFit.update(x2, error, 1);
+			}
+		}
+		sessions++;
+		apply();
+		save();
+	}
+
+	/**
+	 * Use the fitted parameters if they are plausible, else start over
+	 * from the stock ones.
+	 */
+	private void apply() {
+		CurveParams c = new CurveParams();
+		c.copyFrom(curve);
+		c.A = (float)curveFit.get(0);
+		c.K1 = (float)curveFit.get(1);
+		c.K2 = (float)curveFit.get(2);
+		c.K3 = (float)curveFit.get(3);
+		if (plausible(c)) {
+			curve.copyFrom(c);
+			//copyFrom() leaves the table out
+			curve.inverseTable = c.inverseTable;
+		} else {
+			curve.copyFrom(stockCurve);
+			curveFit.reset(stockCurveTheta(), variances(stockCurveTheta(), VOLTAGE_NOISE));
+		}
+
+		UBatLimitParams l = new UBatLimitParams();
+		l.copyFrom(limit);
+		l.b = (float)(1 / limitFit.get(0));
+		l.c = (float)limitFit.get(1);
+		l.sb = (float)(1 / uncertaintyFit.get(0));
+		l.sc = (float)uncertaintyFit.get(1);
+		if (plausible(l)) {
+			limit.copyFrom(l);
+		} else {
+			limit.copyFrom(stockLimit);
+			limitFit.reset(stockLimitTheta(), variances(stockLimitTheta(), TIME_NOISE));
+			uncertaintyFit.reset(stockUncertaintyTheta(), variances(stockUncertaintyTheta(), TIME_NOISE));
+		}
+	}
+
+	/**
+	 * The voltage has to be in a sane range and fall with the discharge
+	 * over the usable range, and the inverse has to be tabulated well.
+	 * If it is plausible, the table built for checking the latter is kept
+	 * in c.inverseTable.
+	 */
+	static boolean plausible(CurveParams c) {
+		float last = Float.MAX_VALUE;
+		for (int q = 0; q <= 10000; q += 250) {
+			float u = ChargingModel.U_bat(c, q);
+			if (!(u > 2 && u < 4.6f))
+				return false;
+			if (q >= 500 && u > last + 0.001f)
+				return false;
+			last = u;
+		}
+		InverseCurveTable table = new InverseCurveTable(c);
+		if (!table.isAccurate())
+			return false;
+		c.inverseTable = table;
+		return true;
+	}
+
+	/**
+	 * The time remaining and its uncertainty have to be positive and less
+	 * than a few hours over the usual range of charging currents.
+	 */
+	static boolean plausible(UBatLimitParams l) {
+		for (float current = 0.2f; current <= 2; current += 0.1f) {
+			float s = ChargingModel.limitSeconds(l, current);
+			float u = ChargingModel.limitUncertainty(l, current);
+			if (!(s >= 0 && s < 5 * 3600))
+				return false;
+			if (!(u >= 0 && u < 5 * 3600))
+				return false;
+		}
+		return true;
+	}
+
+	int getSessions() {
+		return sessions;
+	}
+
+	void setFile(File file) {
+		this.file = file;
+		if (file.exists())
+			load();
+	}
+
+	private void load() {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != MAGIC || in.readShort() != VERSION)
+					throw new IOException("Not a parameter file");
+				int s = in.readInt();
+				curveFit.read(in);
+				limitFit.read(in);
+				uncertaintyFit.read(in);
+				sessions = s;
+			} finally {
+				in.close();
+			}
+			apply();
+			LogSink.i(TAG, "Loaded parameters refined over " + sessions + " sessions");
+		} catch (IOException e) {
+			LogSink.e(TAG, "Error loading " + file + ", using the stock parameters", e);
+			sessions = 0;
+			curve.copyFrom(stockCurve);
+			limit.copyFrom(stockLimit);
+			curveFit.reset(stockCurveTheta(), variances(stockCurveTheta(), VOLTAGE_NOISE));
+			limitFit.reset(stockLimitTheta(), variances(stockLimitTheta(), TIME_NOISE));
+			uncertaintyFit.reset(stockUncertaintyTheta(), variances(stockUncertaintyTheta(), TIME_NOISE));
+		}
+	}
+
+	private void save() {
+		if (file == null)
+			return;
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+				out.writeInt(MAGIC);
+				out.writeShort(VERSION);
+				out.writeInt(sessions);
+				curveFit.write(out);
+				limitFit.write(out);
+				uncertaintyFit.write(out);
+				out.flush();
+				fos.getFD().sync();
+			} finally {
+				fos.close();
+			}
+			if (!tmp.renameTo(file))
+				throw new IOException("Cannot rename " + tmp);
+		} catch (IOException e) {
+			LogSink.e(TAG, "Error saving " + file, e);
+		}
+	}
+}
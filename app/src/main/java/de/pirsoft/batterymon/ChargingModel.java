@@ -3,67 +3,73 @@ package de.pirsoft.batterymon;
 import de.pirsoft.batterymon.DataLogger.DataEntry;
 import de.pirsoft.batterymon.DataLogger.Status;
 
+import java.io.File;
+
 /**
  * Created by pierre on 06.04.16.
  */
 @SuppressWarnings("DefaultFileTemplate")
 class ChargingModel {
 
-	private class AvgHistory {
-		static final int history_length = 20;
-		float history[] = new float[history_length];
-		int pos = 0;
-		int valid = 0;
-		float sum = 0;
-		float average = 0;
-		void integrate(float value) {
-			if (valid == history.length)
-				sum -= history[pos];
-			else
-				valid++;
-			sum += value;
-			history[pos] = value;
-			pos++;
-			if (pos >= history.length)
-				pos = 0;
-			average = sum / valid;
-		}
+	/* the signals are tracked over the last 10 seconds, minute and 10
+	   minutes. Samples are at least a second apart, so the buffer holds
+	   the 10 minute window at the fastest sampling. The model uses the
+	   shortest window for the battery current and the input voltage;
+	   every sample already is a filtered average over its sampling
+	   period. */
+	static final long STATS_WINDOWS[] = { 10000, 60000, 600000 };
+	static final int STATS_CAPACITY = 600;
+	static final int SHORT_WINDOW = 0;
+
+	static WindowedStats newStats() {
+		return new WindowedStats(STATS_WINDOWS, STATS_CAPACITY);
 	}
 
 	private abstract class Input {
 		float voltageMin;
 		float currentMax;
-		AvgHistory voltageNow = new AvgHistory();
+		WindowedStats voltageNow = newStats();
 		boolean present;
-		abstract public void update();
+		/**
+		 * @return false if the sample lacks values for this input
+		 */
+		abstract public boolean update(SampleSnapshot sample);
 	}
 
 	private class InputUSB extends Input {
-		@SuppressWarnings("ConstantConditions")
 		@Override
-		public void update() {
-			voltageNow.integrate((Float)DataLogger.getStoredValue(DataLogger.DataEntry.USBVoltage));
-			present = (Boolean)DataLogger.getStoredValue(DataLogger.DataEntry.USBPresent);
-			currentMax = (Float)DataLogger.getStoredValue(DataLogger.DataEntry.USBCurrentMax);
+		public boolean update(SampleSnapshot sample) {
+			if (!sample.isValid(DataEntry.USBVoltage) ||
+				!sample.isValid(DataEntry.USBPresent) ||
+				!sample.isValid(DataEntry.USBCurrentMax))
+				return false;
+			voltageNow.add(sample.getTimestamp(), sample.getFloat(DataEntry.USBVoltage));
+			present = sample.getBoolean(DataEntry.USBPresent);
+			currentMax = sample.getFloat(DataEntry.USBCurrentMax);
 			if (currentMax > 0.5)
 				voltageMin = 4.5f;
 			else
 				voltageMin = 4.9f;
+			return true;
 		}
 	}
 
 	private class InputQPNP_DC extends Input {
-		@SuppressWarnings("ConstantConditions")
 		@Override
-		public void update() {
-			voltageNow.integrate((Float)DataLogger.getStoredValue(DataLogger.DataEntry.QPNP_DC_Voltage));
-			present = (Boolean)DataLogger.getStoredValue(DataLogger.DataEntry.QPNP_DC_Present);
-			currentMax = (Float)DataLogger.getStoredValue(DataLogger.DataEntry.QPNP_DC_CurrentMax);
+		public boolean update(SampleSnapshot sample) {
+			if (!sample.isValid(DataEntry.QPNP_DC_Voltage) ||
+				!sample.isValid(DataEntry.QPNP_DC_Present) ||
+				!sample.isValid(DataEntry.QPNP_DC_CurrentMax))
+				return false;
+			voltageNow.add(sample.getTimestamp(), sample.getFloat(DataEntry.QPNP_DC_Voltage));
+			present = sample.getBoolean(DataEntry.QPNP_DC_Present);
+			currentMax = sample.getFloat(DataEntry.QPNP_DC_CurrentMax);
 			voltageMin = 4.35f;
+			return true;
 		}
 	}
 
-	private class UBatLimitParams {
+	static class UBatLimitParams {
 		float a = -0.1306617894347005f;
 		float b = 0.0008832210812982429f;
 		float c = 3154.701435969582f;
@@ -72,9 +78,14 @@ class ChargingModel {
 		float sa = -0.1184127445856138f;
 		float sb = 0.03418389946467427f;
 		float sc = 188.0148041614768f;
+
+		void copyFrom(UBatLimitParams o) {
+			a = o.a; b = o.b; c = o.c; d = o.d; e = o.e;
+			sa = o.sa; sb = o.sb; sc = o.sc;
+		}
 	}
 
-	private class CurveParams {
+	static class CurveParams {
 		float A = 2.757999217707216f;
 		float K1 = 1.530360471158158f;
 		float Q1 = 0.8463802381765331f;
@@ -91,6 +102,22 @@ class ChargingModel {
 		float B3 = 3.515529492653092f;
 		float v3 = 2.535084711091006f;
 		float C3 = 0.0003672617713806172f;
+		/* rebuilt by U_bat_inv when the parameters change */
+		InverseCurveTable inverseTable;
+
+		void copyFrom(CurveParams o) {
+			A = o.A;
+			K1 = o.K1; Q1 = o.Q1; B1 = o.B1; v1 = o.v1; C1 = o.C1;
+			K2 = o.K2; Q2 = o.Q2; B2 = o.B2; v2 = o.v2; C2 = o.C2;
+			K3 = o.K3; Q3 = o.Q3; B3 = o.B3; v3 = o.v3; C3 = o.C3;
+		}
+
+		boolean sameAs(CurveParams o) {
+			return A == o.A &&
+				K1 == o.K1 && Q1 == o.Q1 && B1 == o.B1 && v1 == o.v1 && C1 == o.C1 &&
+				K2 == o.K2 && Q2 == o.Q2 && B2 == o.B2 && v2 == o.v2 && C2 == o.C2 &&
+				K3 == o.K3 && Q3 == o.Q3 && B3 == o.B3 && v3 == o.v3 && C3 == o.C3;
+		}
 	}
 
 	enum State {
@@ -104,15 +131,17 @@ class ChargingModel {
 	private Input inputs[] = { new InputQPNP_DC(), new InputUSB() };
 	private UBatLimitParams uBatLimitParams = new UBatLimitParams();
 	private CurveParams curveParams = new CurveParams();
-	private AvgHistory current = new AvgHistory();
-	private AvgHistory voltage = new AvgHistory();
+	private BatteryStateEstimator estimator = new BatteryStateEstimator(curveParams);
+	private WindowedStats current = newStats();
 	private float minimumExternalResistance = 1000;
+	private ChargeSessionFitter fitter = new ChargeSessionFitter(curveParams, uBatLimitParams);
+	private DischargePredictor discharge = new DischargePredictor(curveParams);
 
 	/**
 	 * @param I_acc Accumulated discharge current in As
 	 * @return Battery Voltage
 	 */
-	private float U_bat(CurveParams cp, float I_acc) {
+	static float U_bat(CurveParams cp, float I_acc) {
 		I_acc /= 3600;
 		return (float)(cp.A
 			+ cp.K1 / Math.pow(cp.C1 + cp.Q1 * Math.exp(-cp.B1 * I_acc), 1/cp.v1)
@@ -120,7 +149,53 @@ class ChargingModel {
 			+ cp.K3 / Math.pow(cp.C3 + cp.Q3 * Math.exp(-cp.B3 * I_acc), 1/cp.v3));
 	}
 
-	private float U_bat_inv(CurveParams cp, float vol) {
+	/**
+	 * The terms U_bat is linear in: U_bat = A + K1 * terms[0] +
+	 * K2 * terms[1] + K3 * terms[2]
+	 */
+	static void U_bat_terms(CurveParams cp, float I_acc, double terms[]) {
+		I_acc /= 3600;
+		terms[0] = 1 / Math.pow(cp.C1 + cp.Q1 * Math.exp(-cp.B1 * I_acc), 1/cp.v1);
+		terms[1] = 1 / Math.pow(cp.C2 + cp.Q2 * Math.exp(-cp.B2 * I_acc), 1/cp.v2);
+		terms[2] = 1 / Math.pow(cp.C3 + cp.Q3 * Math.exp(-cp.B3 * I_acc), 1/cp.v3);
+	}
+
+	/**
+	 * @return time in the battery voltage limited phase at the given
+	 * current, in s
+	 */
+	static float limitSeconds(UBatLimitParams lp, float current) {
+		return (float)(Math.log(
+				Math.pow(current,lp.d)*lp.e +
+				current +
+				lp.a)/
+			lp.b+lp.c);
+	}
+
+	static float limitUncertainty(UBatLimitParams lp, float current) {
+		return (float)(Math.log(
+				current +
+				lp.sa)/
+			lp.sb+lp.sc);
+	}
+
+	/**
+	 * @param vol Battery Voltage
+	 * @return Accumulated discharge current in As, from the table for cp
+	 * if it is accurate enough, else by bisection
+	 */
+	static float U_bat_inv(CurveParams cp, float vol) {
+		InverseCurveTable table = cp.inverseTable;
+		if (table == null || !table.isFor(cp)) {
+			table = new InverseCurveTable(cp);
+			cp.inverseTable = table;
+		}
+		if (table.isAccurate())
+			return table.lookup(vol);
+		return U_bat_inv_bisect(cp, vol);
+	}
+
+	static float U_bat_inv_bisect(CurveParams cp, float vol) {
 		float I_acc = 0;
 		if (vol < 2)
 			return 20*3600;
@@ -145,38 +220,80 @@ class ChargingModel {
 		return (out1*(in-in2)-out2*(in-in1))/(in1-in2);
 	}
 
-	void updateModel() {
+	/**
+	 * Advance the model by one sample. The values calculated by the model
+	 * and the model result are stored back into the sample.
+	 */
+	void updateModel(SampleSnapshot sample) {
+		update(sample);
+		fitter.update(sample, state);
+		sample.setModelResult(state, secondsRemaining, secondsRemainingUncertainty);
+		if (state == State.NotCharging)
+			sample.setDischargeResult(discharge.getSecondsRemaining(),
+				discharge.getSecondsRemainingUncertainty());
+		else
+			sample.setDischargeResult(-1, -1);
+	}
+
+	/**
+	 * Load the parameters refined by earlier charge sessions from file,
+	 * and save them there after every completed session.
+	 */
+	void setParamsFile(File file) {
+		fitter.setFile(file);
+	}
+
+	/**
+	 * Whether completed charge sessions refine the parameters. Samples
+	 * replayed to restore the state of the model have been learned from
+	 * before.
+	 */
+	void setLearning(boolean learning) {
+		fitter.setLearning(learning);
+	}
+
+	private void update(SampleSnapshot sample) {
 		//noinspection unused
 		final float batteryVoltageThreshold = 4.2f;
 		final float maximumOutputVoltage = 4.25f;
 		final float internalResistance = 0.33f;
 		final float internalResistanceThreshold = internalResistance * 1.5f;
 
-		try {
-			//noinspection ConstantConditions
-			current.integrate((Float)DataLogger.getStoredValue(DataEntry.BatteryCurrent));
-			//noinspection ConstantConditions
-			voltage.integrate((Float)DataLogger.getStoredValue(DataEntry.BatteryVoltage));
-		} catch (Exception e) {
+		if (!sample.isValid(DataEntry.BatteryCurrent) ||
+			!sample.isValid(DataEntry.BatteryVoltage) ||
+			!sample.isValid(DataEntry.BMSResistance)) {
 			state = State.Exception;
 			secondsRemaining = -1;
 			secondsRemainingUncertainty = -1;
 			return;
 		}
-
-		float current = this.current.average;
-		float outputVoltage = this.voltage.average;
-		float resistance = (Float)DataLogger.getStoredValue(DataEntry.BMSResistance);
-		float batteryVoltage = outputVoltage - current * resistance;
-		DataLogger.setStoredValue(DataEntry.ActualBatteryVoltage, batteryVoltage);
+		float sampleCurrent = sample.getFloat(DataEntry.BatteryCurrent);
+		this.current.add(sample.getTimestamp(), sampleCurrent);
+		estimator.update(sample.getTimestamp(), sampleCurrent,
+			sample.getFloat(DataEntry.BatteryVoltage),
+			sample.getFloat(DataEntry.BMSChargeCounter),
+			sample.getFloat(DataEntry.BMSResistance));
+
+		//the estimator follows every sample, the charging state follows
+		//the 10s mean, so a single sample of the other sign does not
+		//switch between charging and discharging
+		float current = this.current.getWindow(SHORT_WINDOW).getMean();
+
+		float outputVoltage = estimator.getTerminalVoltage(current);
+		float resistance = estimator.getResistance();
+		float batteryVoltage = estimator.getOpenCircuitVoltage();
+		sample.setFloat(DataEntry.ActualBatteryVoltage, batteryVoltage);
 		if (current < 0) {
+			discharge.update(sample.getTimestamp(), sampleCurrent, estimator);
 			state = State.NotCharging;
 			secondsRemaining = -1;
 			secondsRemainingUncertainty = -1;
 			return;
 		}
 
-		Status status = (Status) DataLogger.getStoredValue(DataEntry.Status);
+		discharge.reset();
+
+		Status status = sample.getStatus(DataEntry.Status);
 		if (status != Status.Charging) {
 			state = State.NotCharging;
 			secondsRemaining = -1;
@@ -186,9 +303,7 @@ class ChargingModel {
 
 		Input activeInput = null;
 		for (Input input : inputs) {
-			try {
-				input.update();
-			} catch (Exception e) {
+			if (!input.update(sample)) {
 				state = State.Exception;
 				secondsRemaining = -1;
 				secondsRemainingUncertainty = -1;
@@ -207,11 +322,11 @@ class ChargingModel {
 			return;
 		}
 
-		float inputVoltage = activeInput.voltageNow.average;
-		float accumCurrent_0 = U_bat_inv(curveParams, batteryVoltage);
+		float inputVoltage = activeInput.voltageNow.getWindow(SHORT_WINDOW).getMean();
+		float accumCurrent_0 = estimator.getCharge();
 		float realInternalResistance = (inputVoltage - outputVoltage)/current;
 
-		DataLogger.setStoredValue(DataEntry.InternalResistance, realInternalResistance);
+		sample.setFloat(DataEntry.InternalResistance, realInternalResistance);
 
 		//map inputVoltage between activeInput.voltageMin*1.05 to activeInput.voltageMin*1.00 to 0 to 1
 		float input_voltage_limit_p = map(inputVoltage, activeInput.voltageMin+0.5f, activeInput.voltageMin, 0, 1);
@@ -274,7 +389,7 @@ class ChargingModel {
 			float voltageSupply = 5.1f;
 
 			float realExternalResistance = (voltageSupply-inputVoltage)/current;
-			DataLogger.setStoredValue(DataEntry.ExternalResistance, realExternalResistance);
+			sample.setFloat(DataEntry.ExternalResistance, realExternalResistance);
 			if (realExternalResistance < minimumExternalResistance)
 				minimumExternalResistance = realExternalResistance;
 			else
@@ -300,15 +415,8 @@ class ChargingModel {
 			state == State.InternalResistanceLimit || state == State.BatteryVoltageLimit) {
 			//in this phase, the current is regulated to keep the battery voltage
 			//constant. We use a fitted logarithmic curve to estimate the time remaining.
-			seconds += Math.log(
-					Math.pow(current,uBatLimitParams.d)*uBatLimitParams.e +
-					current +
-					uBatLimitParams.a)/
-				uBatLimitParams.b+uBatLimitParams.c;
-			uncertainty += Math.log(
-					current +
-					uBatLimitParams.sa)/
-				uBatLimitParams.sb+uBatLimitParams.sc;
+			seconds += limitSeconds(uBatLimitParams, current);
+			uncertainty += limitUncertainty(uBatLimitParams, current);
 		}
 		secondsRemaining = seconds;
 		secondsRemainingUncertainty = uncertainty;
@@ -343,4 +451,16 @@ class ChargingModel {
 	int getSecondsRemainingUncertainty() {
 		return secondsRemainingUncertainty;
 	}
+
+	/**
+	 * @return seconds until the battery is empty while discharging, -1
+	 * otherwise
+	 */
+	int getDischargeSecondsRemaining() {
+		return state == State.NotCharging ? discharge.getSecondsRemaining() : -1;
+	}
+
+	int getDischargeSecondsRemainingUncertainty() {
+		return state == State.NotCharging ? discharge.getSecondsRemainingUncertainty() : -1;
+	}
 }
@@ -2,15 +2,19 @@ package de.pirsoft.batterymon;
 
 import android.app.Activity;
 import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -18,37 +22,78 @@ public class DataLogger extends Service {
 	static final String TAG = "Batterymon.DataLogger";
 
 	private boolean external_power = true;
-	private Set<Activity> displayingActivities = new HashSet<>();
-	private RandomAccessFile logfileraf;
-	private	StringBuilder linesb = new StringBuilder();
+	private final Set<Activity> displayingActivities =
+		Collections.synchronizedSet(new HashSet<Activity>());
+	/* samples are written in batches of up to a minute, and synced every
+	   ten batches. The queue can hold ten minutes worth of samples before
+	   they get dropped. */
+	static final int LOG_QUEUE_CAPACITY = 600;
+	static final int LOG_BATCH_RECORDS = 60;
+	static final long LOG_BATCH_MILLIS = 60000;
+	static final int LOG_SYNC_EVERY_BATCHES = 10;
+
+	/* samples are taken every second while things change, and up to a
+	   minute apart when they do not. The maximum is lower on external power
+	   and while an activity shows the values. Plugging and unplugging are
+	   noticed from the system broadcasts, and sample right away. */
+	static final long MIN_SAMPLE_PERIOD = 1000;
+	static final long MAX_SAMPLE_PERIOD = 60000;
+	static final long MAX_SAMPLE_PERIOD_EXTERNAL_POWER = 10000;
+	static final long MAX_SAMPLE_PERIOD_DISPLAYING = 1000;
+
+	/* fast changing channels are read this many times per sample period,
+	   spread evenly, and decimated to one value per sample. The battery
+	   channels use a box filter, which lags less, the supply voltages a
+	   triangular one, which suppresses ripple better. Reads are not spread
+	   closer than MIN_TICK_PERIOD, so at the shortest periods, there is
+	   one read per sample and the thread wakes up once per second. */
+	static final int OVERSAMPLING = 4;
+	static final long MIN_TICK_PERIOD = 1000;
+
+	/* the journal keeps the last six hours at one sample per second */
+	static final int JOURNAL_CAPACITY = 6 * 3600;
+
+	private AsyncLogWriter logWriter;
+	private int logValues[];
+	/* opened once per process, a mapping cannot be released */
+	static private volatile SampleJournal journal;
+	static private volatile HistoryPyramid history;
 
 	public DataLogger() {
 	}
 
-	private class MyAdvancer implements Runnable
+	private class MyAdvancer implements FixedRateScheduler.Task
 	{
-		int counter = 0;
-		void sched()
+		SamplingRateController rate = new SamplingRateController(MIN_SAMPLE_PERIOD, MAX_SAMPLE_PERIOD);
+		Status lastStatus = null;
+		long lastSample = 0;
+
+		long getPeriodLimit()
 		{
-			if (external_power || !displayingActivities.isEmpty())
-				myHandler.postDelayed(this, 1000);
-			else
-				myHandler.postDelayed(this, 5000);
+			if (!displayingActivities.isEmpty())
+				return MAX_SAMPLE_PERIOD_DISPLAYING;
+			if (external_power)
+				return MAX_SAMPLE_PERIOD_EXTERNAL_POWER;
+			return MAX_SAMPLE_PERIOD;
 		}
 
-		public void run()
+		public void onTick(long timestamp)
 		{
-			/* this is not using threading, just Handler + postDelayed */
-			if (this != advancer) { return; }
-
+			/* runs on samplerThread */
+			long period = rate.getPeriod(getPeriodLimit());
 			try {
-				if (counter >= 12 || external_power ||
-					!displayingActivities.isEmpty()) {
-					collectData(false);
-					counter = 0;
-				} else {
-					collectData(true);
-					counter++;
+				Status status = sampler.updateStatus();
+				external_power = status != Status.Discharing;
+				if (status != lastStatus)
+					rate.reset();
+				lastStatus = status;
+				sampler.subSample();
+				period = rate.getPeriod(getPeriodLimit());
+				/* round to the nearest tick */
+				if (timestamp - lastSample + tickPeriod(period) / 2 >= period ||
+					timestamp < lastSample) {
+					period = rate.update(collectData(timestamp), getPeriodLimit());
+					lastSample = timestamp;
 				}
 			}
 			catch (Exception e) {
@@ -56,12 +101,42 @@ public class DataLogger extends Service {
 				//cannot display an alert here.(only system alerts, which needs permission)
 				Log.e(TAG, "Exception during data collections", e);
 			}
-			sched();
+			scheduler.setPeriod(tickPeriod(period));
+		}
+
+		long tickPeriod(long period)
+		{
+			return Math.max(period / OVERSAMPLING, Math.min(period, MIN_TICK_PERIOD));
+		}
+
+		/**
+		 * A supply was plugged in or out: sample at the minimum period,
+		 * starting now.
+		 */
+		void onPowerChanged()
+		{
+			/* runs on samplerThread */
+			rate.reset();
+			scheduler.tickNow();
 		}
 	}
 
-	private Handler myHandler = new Handler();
-	private MyAdvancer advancer = null;
+	private class PowerReceiver extends BroadcastReceiver
+	{
+		@Override
+		public void onReceive(Context context, Intent intent)
+		{
+			if (advancer != null)
+				advancer.onPowerChanged();
+		}
+	}
+
+	/* sampling runs on its own thread, so it is not delayed by the UI and
+	   does not delay it */
+	private HandlerThread samplerThread;
+	private FixedRateScheduler scheduler = null;
+	private MyAdvancer advancer;
+	private PowerReceiver powerReceiver;
 	static private DataLogger currentInstance;
 
 	@Override
@@ -70,9 +145,19 @@ public class DataLogger extends Service {
         	// We want this service to continue running until it is explicitly
 		// stopped, so return sticky.
 
-		if (advancer == null) {
+		if (scheduler == null) {
+			model.setParamsFile(new File(getFilesDir(), "model.params"));
+			sampler = new Sampler(powerSupplySource);
+			samplerThread = new HandlerThread(TAG);
+			samplerThread.start();
+			Handler handler = new Handler(samplerThread.getLooper());
 			advancer = new MyAdvancer();
-			advancer.sched();
+			scheduler = new FixedRateScheduler(handler, advancer);
+			scheduler.start(MIN_SAMPLE_PERIOD);
+			IntentFilter filter = new IntentFilter(Intent.ACTION_POWER_CONNECTED);
+			filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+			powerReceiver = new PowerReceiver();
+			registerReceiver(powerReceiver, filter, null, handler);
 		}
 
 		currentInstance = this;
@@ -80,11 +165,47 @@ public class DataLogger extends Service {
         	return START_STICKY;
 	}
 
+	@Override
+	public void onDestroy() {
+		if (scheduler != null) {
+			unregisterReceiver(powerReceiver);
+			powerReceiver = null;
+			scheduler.stop();
+			//a tick or broadcast already running still uses scheduler and
+			//sampler, so they are only dropped once the thread is done
+			samplerThread.quit();
+			boolean interrupted = false;
+			while (samplerThread.isAlive()) {
+				try {
+					samplerThread.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			Log.i(TAG, "Sampling: " + scheduler.getStatistics());
+			scheduler = null;
+			sampler.close();
+			sampler = null;
+		}
+		if (logWriter != null) {
+			logWriter.close();
+			logWriter = null;
+			//closed by the log writer
+			history = null;
+		}
+		//the journal stays mapped for the next instance in this process
+		if (journal != null)
+			journal.force();
+		if (currentInstance == this)
+			currentInstance = null;
+		super.onDestroy();
+	}
+
 	public static void addDisplayingActivity(Activity a) {
 		if (currentInstance == null)
 			return;
-		if (currentInstance.displayingActivities.contains(a))
-			return;
 		currentInstance.displayingActivities.add(a);
 	}
 
@@ -101,201 +222,6 @@ public class DataLogger extends Service {
 
 	enum Status { Charging, Discharing, Full, Unknown }
 
-	private static String readProcLine(RandomAccessFile raf, byte[] buf) throws IOException {
-		raf.seek(0);
-		int len = raf.read(buf);
-		//find the line end
-		int pos = 0;
-		while(pos < len && buf[pos] != '\n') pos++;
-		return new String(buf, 0, pos);
-	}
-
-	static class Entry {
-		String lastValue;
-		
-		Entry() {
-		}
-
-		public String updateData(boolean useLastValue) {
-			if (useLastValue) return lastValue;
-			return updateData();
-		}
-		public String updateData() {
-			String line = "n/a";
-			lastValue = line;
-			return line;
-		}
-
-		@Nullable
-		public Object getValue() {
-			return lastValue;
-		}
-
-		public void setValue(Object v) {}
-
-		public boolean isCollected() {
-			return false;
-		}
-	}
-
-	static class SysEntry extends Entry {
-		String path;
-		RandomAccessFile raf;
-		private byte buf[] = new byte[20];
-
-		SysEntry(String path) {
-			this.path = path;
-			try {
-				raf = new RandomAccessFile(path,"r");
-			}
-			catch (Exception ignored) {
-			}
-		}
-
-		public String updateData(boolean useLastValue) {
-			if (useLastValue) return lastValue;
-			return updateData();
-		}
-		public String updateData() {
-			String line = "n/a";
-			try {
-				line = readProcLine(raf, buf);
-			}
-			catch (Exception ignored) {
-			}
-			lastValue = line;
-			return line;
-		}
-
-		public boolean isCollected() {
-			return true;
-		}
-	}
-
-	static private class SysEntryStatus extends SysEntry {
-		SysEntryStatus(String path) {
-			super(path);
-		}
-
-		@Override
-		@Nullable
-		public Object getValue() {
-			Status s = Status.Unknown;
-			if ("Charging".equals(lastValue))
-				s = Status.Charging;
-			if ("Discharging".equals(lastValue))
-				s = Status.Discharing;
-			if ("Full".equals(lastValue))
-				s = Status.Full;
-			return s;
-		}
-	}
-
-	static private class SysEntryBoolean extends SysEntry {
-		SysEntryBoolean(String path) {
-			super(path);
-		}
-
-		@Override
-		@Nullable
-		public Object getValue() {
-			return "1".equals(lastValue);
-		}
-	}
-
-	static class SysEntryNumeric extends SysEntry {
-		private float scaling;
-
-		SysEntryNumeric(String path, float scaling) {
-			super(path);
-			this.scaling = scaling;
-		}
-
-		@Override
-		@Nullable
-		public Object getValue() {
-			if (lastValue != null) {
-				return Float.parseFloat(lastValue) * scaling;
-			} else {
-				return null;
-			}
-		}
-	}
-
-	static private class SysEntryNumericAverage extends SysEntry {
-		private int average_count;
-		private float scaling;
-		private boolean valid = false;
-		private float lastValue;
-		private byte buf[] = new byte[20];
-
-		SysEntryNumericAverage(String path, float scaling) {
-			super(path);
-			this.average_count = 5;
-			this.scaling = scaling;
-		}
-
-		@Override
-		public String updateData() {
-			String line = "n/a";
-			try {
-				float val = 0;
-				for(int i = 0; i < average_count; i++) {
-					line = readProcLine(raf, buf);
-					val += Integer.parseInt(line);
-				}
-				val /= average_count;
-				lastValue = val;
-				valid = true;
-				line = Float.toString(val);
-			}
-			catch (Exception e) {
-				valid = false;
-			}
-			return line;
-		}
-
-		@Override
-		@Nullable
-		public Object getValue() {
-			if (!valid)
-				return null;
-			else
-				return lastValue * scaling;
-		}
-	}
-
-	static private class CalculatedNumericEntry extends Entry {
-		private boolean valid = false;
-		private float lastValue;
-
-		@Override
-		@Nullable
-		public Object getValue() {
-			if (!valid)
-				return null;
-			else
-				return lastValue;
-		}
-
-		@Override
-		public void setValue(Object v) {
-			lastValue = (Float)v;
-			valid = true;
-		}
-	}
-
-	static private class SysEntryNumericUncollected extends SysEntryNumeric {
-		SysEntryNumericUncollected(String path, float scaling) {
-			super(path, scaling);
-		}
-
-		public boolean isCollected() {
-			return false;
-		}
-	}
-
-
 	enum DataEntry {
 		Status(0), BatteryCurrent(1), BatteryVoltage(2),
 		BMSChargeCounter(3), BMSResistance(4),
@@ -305,86 +231,165 @@ public class DataLogger extends Service {
 		BatteryCapacity(12),
 		InternalResistance(13),
 		ExternalResistance(14),
-		ActualBatteryVoltage(15);
+		ActualBatteryVoltage(15),
+		BatteryChargeFull(16);
 
 		private int numVal;
 		DataEntry(int numVal) { this.numVal = numVal; }
 		int getNumVal() { return numVal; }
 	}
 
-	static final SysEntryStatus sysEntStatus = new SysEntryStatus("/sys/class/power_supply/battery/status");
-	
-	static final Entry entries[] = {
-		sysEntStatus,
-		new SysEntryNumericAverage("/sys/class/power_supply/battery/current_now",1e-6f),
-		new SysEntryNumericAverage("/sys/class/power_supply/battery/voltage_now",1e-6f),
-		new SysEntryNumeric("/sys/class/power_supply/bms/charge_counter_shadow",1e-6f),//Ah
-		new SysEntryNumeric("/sys/class/power_supply/bms/resistance",1e-6f),
-		new SysEntryNumericAverage("/sys/class/power_supply/qpnp-dc/voltage_now",1e-6f),
-		new SysEntryBoolean("/sys/class/power_supply/qpnp-dc/present"),
-		new SysEntryNumeric("/sys/class/power_supply/qpnp-dc/current_max",1e-6f),
-		new SysEntryNumericAverage("/sys/class/power_supply/usb/voltage_now",1e-6f),
-		new SysEntryBoolean("/sys/class/power_supply/usb/present"),
-		new SysEntryNumeric("/sys/class/power_supply/usb/current_max",1e-6f),
-		new SysEntryNumeric("/sys/class/power_supply/battery/temp",1e-1f),
-		new SysEntryNumericUncollected("/sys/class/power_supply/battery/capacity",1e-2f),
-		new CalculatedNumericEntry(),
-		new CalculatedNumericEntry(),
-		new CalculatedNumericEntry()
-	};
+	/* where the next started service samples from */
+	static private PowerSupplySource powerSupplySource = new SysfsPowerSupplySource();
+
+	/**
+	 * Sample from another source than sysfs, i.E. a FakePowerSupplySource
+	 * for testing. Takes effect when the service is started the next time.
+	 */
+	static void setPowerSupplySource(PowerSupplySource source) {
+		powerSupplySource = source;
+	}
+
+	/* only used on samplerThread, after onStartCommand */
+	private Sampler sampler;
+
+	static final SnapshotPublisher snapshots = new SnapshotPublisher();
 
 	static ChargingModel model = new ChargingModel();
 
-	private void collectData(boolean minimal) {
-		external_power = !sysEntStatus.updateData().contains("Discharging");
-		if (minimal)
-			return;
-		if (logfileraf == null) {
-			File logfile = new File(getExternalFilesDir(null), "data2.log");
-			Log.i(TAG, "Starting logging to "+logfile.toString());
-			try {
-				logfileraf = new RandomAccessFile(logfile, "rws");
-				logfileraf.seek(logfile.length());
-			} catch (Exception ignored) {
+	/**
+	 * Take a sample of all values, except the status, which is updated
+	 * before.
+	 * @param now the time of the sample, which is when it was scheduled to
+	 * be taken
+	 * @return the published sample
+	 */
+	private SampleSnapshot collectData(long now) {
+		if (logWriter == null) {
+			File logdir = new File(getExternalFilesDir(null), "log");
+			SampleLog.Channel channels[] = sampler.getLogChannels();
+			//the journal is opened once per process, and replayed then
+			long lastLogged = journal == null ? getLastLogged(logdir) : Long.MAX_VALUE;
+			if (history == null) {
+				try {
+					history = new HistoryPyramid(new File(getExternalFilesDir(null), "history"),
+						new SampleLog.Header(channels, 0));
+				} catch (IOException e) {
+					Log.e(TAG, "Error opening history", e);
+				}
 			}
-		}
-		linesb.setLength(0);
-		linesb.append(System.currentTimeMillis());
-		//noinspection ForLoopReplaceableByForEach
-		for (int i = 0; i < entries.length; i++) {
-			Entry entry = entries[i];
-			boolean alreadyUpdated = entry == sysEntStatus;
-			if (entry.isCollected()) {
-				linesb.append(" ");
-				linesb.append(entry.updateData(alreadyUpdated));
-			} else {
-				if (!alreadyUpdated)
-					entry.updateData();
+			logWriter = new AsyncLogWriter(logdir, channels, LOG_QUEUE_CAPACITY,
+				LOG_BATCH_RECORDS, LOG_BATCH_MILLIS, LOG_SYNC_EVERY_BATCHES, history);
+			logValues = new int[channels.length];
+			if (journal == null) {
+				try {
+					SampleJournal j = new SampleJournal(new File(getExternalFilesDir(null), "recent.journal"),
+						channels, JOURNAL_CAPACITY);
+					restoreFromJournal(j, lastLogged);
+					journal = j;
+				} catch (IOException e) {
+					Log.e(TAG, "Error opening journal", e);
+				}
 			}
 		}
-		linesb.append('\n');
+		SampleSnapshot snapshot = snapshots.begin();
+		sampler.updateSlow(now);
+		sampler.sample(snapshot, logValues);
+		snapshot.setTimestamp(now);
+		model.updateModel(snapshot);
+		logWriter.offer(now, logValues, snapshot.getTimeRemaining());
+		if (journal != null)
+			journal.append(now, logValues);
+		snapshots.publish(snapshot);
+		return snapshot;
+	}
+
+	/**
+	 * @return the timestamp of the last sample in the log, Long.MIN_VALUE
+	 * if there is none, or Long.MAX_VALUE if it cannot be read
+	 */
+	private static long getLastLogged(File logdir) {
+		if (!logdir.isDirectory())
+			return Long.MIN_VALUE;
 		try {
-			logfileraf.writeBytes(linesb.toString());
+			return SegmentedLog.getLastTimestamp(logdir);
+		} catch (IOException e) {
+			Log.e(TAG, "Error reading the end of the log", e);
+			return Long.MAX_VALUE;
 		}
-		catch (Exception e) {
-			Log.e(TAG, "Error writing to log file", e);
+	}
+
+	/**
+	 * Replay the journal through the model, so the model, the published
+	 * snapshot and with it the UI and the predictor continue where they
+	 * were before the process was restarted. Samples after lastLogged did
+	 * not make it into the log, i.E. because the process was killed; they
+	 * are logged now, which also adds them to the history, as far as they
+	 * fit into the queue of the log writer.
+	 */
+	private void restoreFromJournal(SampleJournal j, final long lastLogged) throws IOException {
+		final SampleJournal.Cursor cursor = j.openCursor(Long.MIN_VALUE);
+		final int values[] = new int[logValues.length];
+		final SampleSnapshot last = snapshots.begin();
+		//relogged[0] counts the samples taken by the log writer,
+		//relogged[1] the ones that did not fit into its queue
+		final long relogged[] = { 0, 0 };
+		long count;
+		model.setLearning(false);
+		try {
+			count = new ModelReplay(model).replay(cursor, new ModelReplay.Listener() {
+				@Override
+				public void onSample(SampleSnapshot sample) {
+					if (sample.getTimestamp() > lastLogged) {
+						if (relogged[1] == 0) {
+							for (int i = 0; i < values.length; i++)
+								values[i] = cursor.getRaw(i);
+							if (logWriter.offer(sample.getTimestamp(), values, sample.getTimeRemaining()))
+								relogged[0]++;
+							else
+								relogged[1]++;
+						} else {
+							//the rest would leave a gap after the first
+							//dropped one, so they are not offered either
+							relogged[1]++;
+						}
+					}
+					last.copyFrom(sample);
+				}
+			});
+		} finally {
+			model.setLearning(true);
 		}
-		model.updateModel();
+		if (count > 0)
+			snapshots.publish(last);
+		Log.i(TAG, "Restored " + count + " samples from the journal, " +
+			relogged[0] + " of them were logged again");
+		if (relogged[1] > 0)
+			Log.w(TAG, relogged[1] + " samples from the journal did not fit into the log queue and are lost");
 	}
 
-	@Nullable
-	static public Object getStoredValue(DataEntry e) {
-		int num = e.getNumVal();
-		if (num < 0 || num > entries.length)
-			return null;
-		return entries[num].getValue();
+	/**
+	 * Copy the values of the last sample into dst.
+	 * @return the sequence number of the sample
+	 */
+	static long readSnapshot(SampleSnapshot dst) {
+		return snapshots.read(dst);
 	}
 
-	static public void setStoredValue(DataEntry e, Object value) {
-		int num = e.getNumVal();
-		if (num < 0 || num > entries.length)
-			return;
-		entries[num].setValue(value);
+	/**
+	 * @return a number that increases with every collected sample
+	 */
+	static long getSnapshotSequence() {
+		return snapshots.getSequence();
+	}
+
+	/**
+	 * @return the downsampled history of the battery voltage, current and
+	 * temperature, or null if sampling has not started yet
+	 */
+	@Nullable
+	static HistoryPyramid getHistory() {
+		return history;
 	}
 
 	static ChargingModel getModel() {
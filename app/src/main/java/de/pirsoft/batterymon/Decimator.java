@@ -0,0 +1,80 @@
+package de.pirsoft.batterymon;
+
+/**
+ * Decimation filter for oversampled channels.
+ *
+ * Sub-samples are added as they are read, spread over the sample period.
+ * decimate() produces one output value from the sub-samples and starts
+ * the next period. The box filter averages the sub-samples of the current
+ * period. The triangular FIR filter also reaches into the previous period,
+ * weighting the sub-samples by their distance from the end of the
+ * previous period, which suppresses aliasing of signals near the sample
+ * rate better.
+ */
+class Decimator {
+	enum Mode { Box, Triangular }
+
+	private final Mode mode;
+	private final int history[];
+	private int pos = 0;
+	private int count = 0;
+	private int sinceLast = 0;
+
+	/**
+	 * @param maxSubSamples the most sub-samples expected per period
+	 */
+	Decimator(Mode mode, int maxSubSamples) {
+		this.mode = mode;
+		history = new int[2 * maxSubSamples];
+	}
+
+	void add(int raw) {
+		history[pos] = raw;
+		pos++;
+		if (pos >= history.length)
+			pos = 0;
+		if (count < history.length)
+			count++;
+		sinceLast++;
+	}
+
+	/**
+	 * @return true if there are no sub-samples for the current period
+	 */
+	boolean isEmpty() {
+		return sinceLast == 0;
+	}
+
+	private int get(int age) {
+		int i = pos - 1 - age;
+		if (i < 0)
+			i += history.length;
+		return history[i];
+	}
+
+	/**
+	 * @return the filtered value for the current period. Must not be called
+	 * if isEmpty().
+	 */
+	float decimate() {
+		int n = Math.min(sinceLast, history.length / 2);
+		sinceLast = 0;
+		if (mode == Mode.Box) {
+			long sum = 0;
+			for (int i = 0; i < n; i++)
+				sum += get(i);
+			return (float)sum / n;
+		}
+		//weights 1, 2, .. n, .. 2, 1 over the last 2n-1 sub-samples, as
+		//far as they are available
+		int taps = Math.min(2 * n - 1, count);
+		double sum = 0;
+		long weights = 0;
+		for (int i = 0; i < taps; i++) {
+			int w = n - Math.abs(i - (n - 1));
+			sum += (double)w * get(i);
+			weights += w;
+		}
+		return (float)(sum / weights);
+	}
+}
@@ -0,0 +1,95 @@
+package de.pirsoft.batterymon;
+
+import de.pirsoft.batterymon.ChargingModel.CurveParams;
+
+/**
+ * Estimates the time until the battery is empty while discharging.
+ *
+ * The charge left is the distance from the accumulated discharge of
+ * BatteryStateEstimator, which follows the BMS charge counter, to the
+ * discharge at which the battery voltage under the present load reaches
+ * EMPTY_VOLTAGE on the CurveParams curve. The time remaining is that
+ * charge over the average discharge current of the longest window of
+ * ChargingModel.STATS_WINDOWS; the estimates from the shorter windows and
+ * the uncertainty of the charge give its uncertainty, so a change in load
+ * shows up there before it moves the estimate.
+ *
+ * update() is O(1): the windows are streaming and the curve is inverted
+ * with the InverseCurveTable.
+ */
+class DischargePredictor {
+	/* the phone shuts down at about this battery terminal voltage */
+	static final float EMPTY_VOLTAGE = 3.4f;
+	/* below this average discharge current in A, there is no estimate */
+	static final float MIN_CURRENT = 0.005f;
+	/* there is no estimate until the shortest window has this many
+	   samples */
+	static final int MIN_SAMPLES = 2;
+
+	private final CurveParams curve;
+	private final WindowedStats current = ChargingModel.newStats();
+	private boolean empty = true;
+	private int secondsRemaining = -1;
+	private int secondsRemainingUncertainty = -1;
+
+	DischargePredictor(CurveParams curve) {
+		this.curve = curve;
+	}
+
+	/**
+	 * Take a sample taken while discharging into account.
+	 * @param current battery current in A, negative while discharging
+	 */
+	void update(long timestamp, float current, BatteryStateEstimator estimator) {
+		this.current.add(timestamp, -current);
+		empty = false;
+		secondsRemaining = -1;
+		secondsRemainingUncertainty = -1;
+		if (this.current.getWindow(0).getCount() < MIN_SAMPLES)
+			return;
+
+		int longest = this.current.getWindowCount() - 1;
+		float average = this.current.getWindow(longest).getMean();
+		if (!(average > MIN_CURRENT))
+			return;
+		float emptyVoltage = EMPTY_VOLTAGE + average * estimator.getResistance();
+		float left = ChargingModel.U_bat_inv(curve, emptyVoltage) - estimator.getCharge();
+		if (left <= 0) {
+			secondsRemaining = 0;
+			secondsRemainingUncertainty = 0;
+			return;
+		}
+		float seconds = left / average;
+		float uncertainty = estimator.getChargeStdDev() / average;
+		for (int i = 0; i < longest; i++) {
+			float a = this.current.getWindow(i).getMean();
+			if (a > MIN_CURRENT)
+				uncertainty = Math.max(uncertainty, Math.abs(left / a - seconds));
+		}
+		secondsRemaining = (int)seconds;
+		secondsRemainingUncertainty = (int)uncertainty;
+	}
+
+	/**
+	 * Forget the discharge currents, i.E. when charging starts.
+	 */
+	void reset() {
+		if (!empty) {
+			current.clear();
+			empty = true;
+		}
+		secondsRemaining = -1;
+		secondsRemainingUncertainty = -1;
+	}
+
+	/**
+	 * @return seconds until the battery is empty, -1 if unknown
+	 */
+	int getSecondsRemaining() {
+		return secondsRemaining;
+	}
+
+	int getSecondsRemainingUncertainty() {
+		return secondsRemainingUncertainty;
+	}
+}
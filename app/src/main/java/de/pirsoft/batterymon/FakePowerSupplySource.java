@@ -0,0 +1,60 @@
+package de.pirsoft.batterymon;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Power supply values from plain files in a directory, laid out like
+ * /sys/class/power_supply, for running the sampling pipeline off the
+ * device.
+ *
+ * Unlike sysfs, the files are opened for every read, so a test can
+ * replace them at any time, and set() does that atomically.
+ */
+class FakePowerSupplySource implements PowerSupplySource {
+	private final File root;
+
+	FakePowerSupplySource(File root) {
+		this.root = root;
+	}
+
+	public Channel open(String name) throws IOException {
+		final File file = new File(root, name);
+		if (!file.isFile())
+			throw new IOException("No such channel " + name);
+		return new Channel() {
+			public int read(byte buf[]) throws IOException {
+				RandomAccessFile raf = new RandomAccessFile(file, "r");
+				try {
+					return SysfsPowerSupplySource.readLine(raf, buf);
+				} finally {
+					raf.close();
+				}
+			}
+
+			public void close() {
+			}
+		};
+	}
+
+	/**
+	 * Replace the value of a channel, creating it if needed.
+	 */
+	void set(String name, String value) throws IOException {
+		File file = new File(root, name);
+		File dir = file.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create " + dir);
+		File tmp = new File(dir, file.getName() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			fos.write((value + "\n").getBytes("US-ASCII"));
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(file))
+			throw new IOException("Cannot replace " + file);
+	}
+}
@@ -0,0 +1,109 @@
+package de.pirsoft.batterymon;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Runs a task at a fixed rate on a Handler.
+ *
+ * Unlike postDelayed() after the work is done, every tick targets an
+ * absolute deadline (the previous deadline plus the period), so the time
+ * spent in the task and the scheduling latency do not add up to drift.
+ * Ticks that could not be run in time are skipped and counted, and the
+ * lateness of every tick is recorded as jitter.
+ *
+ * The task gets the intended time of the tick in wall clock time, which
+ * is what should go into the log.
+ */
+class FixedRateScheduler implements Runnable {
+	interface Task {
+		/**
+		 * @param timestamp the wall clock time this tick was meant to run at
+		 */
+		void onTick(long timestamp);
+	}
+
+	private final Handler handler;
+	private final Task task;
+	private long period;
+	private long deadline;
+	private volatile boolean running = false;
+
+	//statistics, guarded by this
+	private long ticks = 0;
+	private long missedTicks = 0;
+	private long maxJitter = 0;
+	private long sumJitter = 0;
+
+	FixedRateScheduler(Handler handler, Task task) {
+		this.handler = handler;
+		this.task = task;
+	}
+
+	/**
+	 * Start ticking, the first tick runs right away.
+	 */
+	void start(long period) {
+		this.period = period;
+		deadline = SystemClock.uptimeMillis();
+		running = true;
+		handler.postAtTime(this, deadline);
+	}
+
+	void stop() {
+		running = false;
+		handler.removeCallbacks(this);
+	}
+
+	/**
+	 * Change the period, starting with the next tick. Must be called on the
+	 * Handler thread, usually from the task.
+	 */
+	void setPeriod(long period) {
+		this.period = period;
+	}
+
+	/**
+	 * Run the next tick right away, and continue at the period from there.
+	 * Must be called on the Handler thread.
+	 */
+	void tickNow() {
+		if (!running)
+			return;
+		handler.removeCallbacks(this);
+		deadline = SystemClock.uptimeMillis();
+		handler.postAtTime(this, deadline);
+	}
+
+	public void run() {
+		if (!running)
+			return;
+		long now = SystemClock.uptimeMillis();
+		long jitter = now - deadline;
+		long missed = 0;
+		if (jitter >= period) {
+			missed = jitter / period;
+			deadline += missed * period;
+			jitter = now - deadline;
+		}
+		synchronized (this) {
+			ticks++;
+			missedTicks += missed;
+			sumJitter += jitter;
+			if (jitter > maxJitter)
+				maxJitter = jitter;
+		}
+
+		task.onTick(System.currentTimeMillis() - jitter);
+
+		deadline += period;
+		if (running)
+			handler.postAtTime(this, deadline);
+	}
+
+	synchronized String getStatistics() {
+		return "ticks " + ticks + ", missed " + missedTicks +
+			", mean jitter " + (ticks > 0 ? sumJitter / ticks : 0) + "ms" +
+			", max jitter " + maxJitter + "ms";
+	}
+}
@@ -0,0 +1,127 @@
+package de.pirsoft.batterymon;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.IOException;
+
+import de.pirsoft.batterymon.DataLogger.DataEntry;
+
+/**
+ * Shows the last day of the battery voltage, current, BMS resistance and
+ * time remaining in a HistoryChartView.
+ *
+ * The history is read from the HistoryPyramid on a background thread
+ * when the activity is resumed; from then on, new samples are added as
+ * they are published, and the chart is only redrawn if that changed it.
+ */
+public class HistoryActivity extends Activity {
+	static final String TAG = "Batterymon.HistoryAct";
+
+	private static final int PYRAMID_CHANNELS[] = new int[HistoryChartView.SERIES];
+	static {
+		PYRAMID_CHANNELS[HistoryChartView.VOLTAGE] = HistoryPyramid.VOLTAGE;
+		PYRAMID_CHANNELS[HistoryChartView.CURRENT] = HistoryPyramid.CURRENT;
+		PYRAMID_CHANNELS[HistoryChartView.RESISTANCE] = HistoryPyramid.RESISTANCE;
+		PYRAMID_CHANNELS[HistoryChartView.TIME_REMAINING] = HistoryPyramid.TIME_REMAINING;
+	}
+
+	private class MyAdvancer implements Runnable
+	{
+		void sched()
+		{
+			myHandler.postDelayed(this, 1000);
+		}
+
+		public void run()
+		{
+			/* this is not using threading, just Handler + postDelayed */
+			if (this != advancer) { return; }
+			addSample();
+			sched();
+		}
+	}
+
+	Handler myHandler = new Handler();
+	MyAdvancer advancer = null;
+	private HistoryChartView chart;
+	private final SampleSnapshot snapshot = new SampleSnapshot();
+	private final float values[] = new float[HistoryChartView.SERIES];
+	private long shownSequence = -1;
+	/* increased on every load, so a late result of an earlier one is
+	   dropped */
+	private int loadGeneration = 0;
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.activity_history);
+		chart = (HistoryChartView)findViewById(R.id.historyChart);
+	}
+
+	@Override
+	protected void onPause()
+	{
+		DataLogger.removeDisplayingActivity(this);
+		super.onPause();
+
+		advancer = null;
+		loadGeneration++;
+	}
+
+	@Override
+	protected void onResume()
+	{
+		super.onResume();
+		DataLogger.addDisplayingActivity(this);
+
+		load();
+		advancer = new MyAdvancer();
+		advancer.sched();
+	}
+
+	private void load() {
+		final HistoryPyramid history = DataLogger.getHistory();
+		if (history == null)
+			return;
+		final int generation = ++loadGeneration;
+		final int columns = chart.getColumns();
+		new Thread(new Runnable() {
+			public void run() {
+				final long now = System.currentTimeMillis();
+				final HistoryPyramid.Series result[] = new HistoryPyramid.Series[HistoryChartView.SERIES];
+				try {
+					for (int s = 0; s < result.length; s++) {
+						result[s] = new HistoryPyramid.Series();
+						history.query(PYRAMID_CHANNELS[s], now - HistoryChartView.WINDOW, now,
+							columns, result[s]);
+					}
+				} catch (IOException e) {
+					Log.e(TAG, "Error reading history", e);
+					return;
+				}
+				myHandler.post(new Runnable() {
+					public void run() {
+						if (generation == loadGeneration)
+							chart.setHistory(now, result);
+					}
+				});
+			}
+		}, TAG).start();
+	}
+
+	private void addSample() {
+		if (DataLogger.getSnapshotSequence() == shownSequence)
+			return;
+		shownSequence = DataLogger.readSnapshot(snapshot);
+		values[HistoryChartView.VOLTAGE] = snapshot.getFloat(DataEntry.BatteryVoltage);
+		values[HistoryChartView.CURRENT] = snapshot.getFloat(DataEntry.BatteryCurrent);
+		values[HistoryChartView.RESISTANCE] = snapshot.getFloat(DataEntry.BMSResistance);
+		int remaining = snapshot.getTimeRemaining();
+		values[HistoryChartView.TIME_REMAINING] = remaining >= 0 ? remaining : Float.NaN;
+		if (chart.addSample(snapshot.getTimestamp(), values))
+			chart.invalidate();
+	}
+}
@@ -0,0 +1,332 @@
+package de.pirsoft.batterymon;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.view.View;
+
+import java.text.DecimalFormat;
+
+/**
+ * Chart of the battery voltage, current, BMS resistance and time remaining
+ * over the last day, one panel per signal.
+ *
+ * The history comes from the HistoryPyramid, about one bucket per pixel,
+ * and live samples are added with addSample(). Live samples are averaged
+ * per pixel column, and only a completed column becomes a point, so the
+ * chart changes at most once per column. The paths are kept in column
+ * coordinates relative to a fixed origin: a new point is a single
+ * lineTo(), and scrolling is a translation when drawing. Paths are only
+ * rebuilt when the value range of a panel has to grow, the size changes
+ * or the origin is a window behind. The point buffers are rings of fixed
+ * size, and the paths are rewound, not reallocated.
+ */
+public class HistoryChartView extends View {
+	static final long WINDOW = 24 * 3600 * 1000L;
+	static final int CAPACITY = 4096;
+	static final long NONE = Long.MIN_VALUE;
+
+	static final int VOLTAGE = 0;
+	static final int CURRENT = 1;
+	static final int RESISTANCE = 2;
+	static final int TIME_REMAINING = 3;
+	static final int SERIES = 4;
+
+	private static class Series {
+		final String label;
+		final String unit;
+		final float factor;
+		final float minSpan;
+		final int color;
+		final DecimalFormat format;
+
+		final long times[] = new long[CAPACITY];
+		final float values[] = new float[CAPACITY];
+		int head = 0;
+		int count = 0;
+
+		float yMin = Float.NaN;
+		float yMax = Float.NaN;
+		String title;
+		final Path path = new Path();
+		boolean pathValid = false;
+		boolean penDown = false;
+		long lastPathTime = NONE;
+
+		/* the live samples of the current column */
+		long column = NONE;
+		double columnSum = 0;
+		int columnCount = 0;
+
+		/**
+		 * @param factor from the SI value to the displayed unit
+		 * @param minSpan the smallest value range shown
+		 */
+		Series(String label, String unit, float factor, float minSpan, int color, String pattern) {
+			this.label = label;
+			this.unit = unit;
+			this.factor = factor;
+			this.minSpan = minSpan;
+			this.color = color;
+			format = new DecimalFormat(pattern);
+			updateTitle();
+		}
+
+		private void updateTitle() {
+			title = label + " (" + unit + ")";
+			if (!Float.isNaN(yMin))
+				title += "  " + format.format(yMin) + " – " + format.format(yMax);
+		}
+
+		void clear() {
+			head = 0;
+			count = 0;
+			yMin = Float.NaN;
+			yMax = Float.NaN;
+			pathValid = false;
+			column = NONE;
+			columnSum = 0;
+			columnCount = 0;
+			updateTitle();
+		}
+
+		long lastTime() {
+			return count == 0 ? NONE : times[(head + count - 1) % CAPACITY];
+		}
+
+		/**
+		 * @return false if the value range had to grow
+		 */
+		boolean add(long time, float value) {
+			int i;
+			if (count < CAPACITY) {
+				i = (head + count) % CAPACITY;
+				count++;
+			} else {
+				i = head;
+				head = (head + 1) % CAPACITY;
+			}
+			times[i] = time;
+			values[i] = value;
+			if (Float.isNaN(value))
+				return true;
+			if (Float.isNaN(yMin)) {
+				yMin = value - minSpan / 2;
+				yMax = value + minSpan / 2;
+				updateTitle();
+				return false;
+			}
+			if (value >= yMin && value <= yMax)
+				return true;
+			//grow with a margin, so this does not happen with every point
+			float margin = Math.max(yMax - yMin, minSpan) * 0.1f;
+			if (value < yMin)
+				yMin = value - margin;
+			else
+				yMax = value + margin;
+			updateTitle();
+			return false;
+		}
+	}
+
+	private final Series series[] = {
+		new Series("Voltage", "V", 1, 0.1f, Color.rgb(0x33, 0x99, 0xff), "0.00"),
+		new Series("Current", "mA", 1e3f, 100, Color.rgb(0xff, 0x99, 0x33), "0"),
+		new Series("Resistance", "mΩ", 1e3f, 10, Color.rgb(0x99, 0xcc, 0x33), "0"),
+		new Series("Time remaining", "h", 1 / 3600f, 0.5f, Color.rgb(0xcc, 0x66, 0xcc), "0.0"),
+	};
+
+	private final Paint linePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint gridPaint = new Paint();
+	private final float density;
+	private final float textSize;
+
+	private long origin = NONE;
+	private long latest = NONE;
+	/* points further apart than this are not connected */
+	private long gapMillis;
+	private float msPerColumn = WINDOW / 720f;
+	private float plotLeft;
+	private float plotWidth;
+	private float panelHeight;
+	private float plotHeight;
+
+	public HistoryChartView(Context context) {
+		this(context, null);
+	}
+
+	public HistoryChartView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		density = getResources().getDisplayMetrics().density;
+		textSize = 12 * density;
+		linePaint.setStyle(Paint.Style.STROKE);
+		linePaint.setStrokeWidth(1.5f * density);
+		textPaint.setColor(Color.LTGRAY);
+		textPaint.setTextSize(textSize);
+		gridPaint.setColor(Color.DKGRAY);
+		gapMillis = (long)(3 * msPerColumn);
+	}
+
+	/**
+	 * @return the columns of the plot, for HistoryPyramid.query()
+	 */
+	int getColumns() {
+		return plotWidth > 0 ? (int)plotWidth : 720;
+	}
+
+	/**
+	 * Replace the points with the bucket means from the history, i.E.
+	 * one HistoryPyramid.Series per series of this chart.
+	 * @param now the end of the window
+	 */
+	void setHistory(long now, HistoryPyramid.Series history[]) {
+		long duration = 0;
+		for (int s = 0; s < SERIES; s++) {
+			Series ser = series[s];
+			HistoryPyramid.Series h = history[s];
+			ser.clear();
+			duration = Math.max(duration, h.duration);
+			for (int i = 0; i < h.size; i++)
+				ser.add(h.start[i] + h.duration / 2, h.mean[i] * ser.factor);
+		}
+		origin = now - WINDOW;
+		latest = now;
+		gapMillis = (long)(3 * Math.max(msPerColumn, duration));
+		invalidate();
+	}
+
+	/**
+	 * Add a live sample, in SI units; NaN if a value is not available.
+	 * Samples not after the last point are ignored.
+	 * @return true if the chart changed and needs to be drawn
+	 */
+	boolean addSample(long timestamp, float values[]) {
+		if (origin == NONE)
+			origin = timestamp - WINDOW;
+		else if (timestamp <= latest)
+			return false;
+		latest = timestamp;
+		long column = (long)((timestamp - origin) / msPerColumn);
+		boolean changed = false;
+		for (int s = 0; s < SERIES; s++) {
+			Series ser = series[s];
+			if (ser.column != column) {
+				if (ser.column != NONE)
+					changed |= completeColumn(ser);
+				ser.column = column;
+				ser.columnSum = 0;
+				ser.columnCount = 0;
+			}
+			float v = values[s];
+			if (!Float.isNaN(v)) {
+				ser.columnSum += v * ser.factor;
+				ser.columnCount++;
+			}
+		}
+		if (latest - origin > 2 * WINDOW) {
+			//the paths reach a window back; drop the points before that
+			origin = latest - WINDOW;
+			for (Series ser : series) {
+				ser.pathValid = false;
+				ser.column = NONE;
+			}
+			changed = true;
+		}
+		return changed;
+	}
+
+	/**
+	 * Turn the live samples of the column into a point.
+	 * @return true if a point was added
+	 */
+	private boolean completeColumn(Series ser) {
+		long time = origin + (long)((ser.column + 0.5) * msPerColumn);
+		float value = ser.columnCount > 0 ? (float)(ser.columnSum / ser.columnCount) : Float.NaN;
+		if (time <= ser.lastTime())
+			return false;
+		if (!ser.add(time, value))
+			ser.pathValid = false;
+		else if (ser.pathValid)
+			appendToPath(ser, time, value);
+		return true;
+	}
+
+	private float x(long time) {
+		return (time - origin) / msPerColumn;
+	}
+
+	private float y(Series ser, float value) {
+		return plotHeight * (ser.yMax - value) / (ser.yMax - ser.yMin);
+	}
+
+	private void appendToPath(Series ser, long time, float value) {
+		if (Float.isNaN(value)) {
+			ser.penDown = false;
+		} else if (ser.penDown && time - ser.lastPathTime <= gapMillis) {
+			ser.path.lineTo(x(time), y(ser, value));
+		} else {
+			ser.path.moveTo(x(time), y(ser, value));
+			ser.penDown = true;
+		}
+		ser.lastPathTime = time;
+	}
+
+	private void rebuildPath(Series ser) {
+		ser.path.rewind();
+		ser.path.incReserve(ser.count);
+		ser.penDown = false;
+		ser.lastPathTime = NONE;
+		long from = latest - WINDOW;
+		for (int i = 0; i < ser.count; i++) {
+			int k = (ser.head + i) % CAPACITY;
+			if (ser.times[k] >= from)
+				appendToPath(ser, ser.times[k], ser.values[k]);
+		}
+		ser.pathValid = true;
+	}
+
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+		plotLeft = 4 * density;
+		plotWidth = Math.max(1, w - 2 * plotLeft);
+		panelHeight = (float)h / SERIES;
+		plotHeight = Math.max(1, panelHeight - 2 * textSize);
+		msPerColumn = WINDOW / plotWidth;
+		gapMillis = Math.max(gapMillis, (long)(3 * msPerColumn));
+		for (Series ser : series) {
+			ser.pathValid = false;
+			ser.column = NONE;
+		}
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		super.onDraw(canvas);
+		if (origin == NONE)
+			return;
+		float scroll = x(latest - WINDOW);
+		for (int s = 0; s < SERIES; s++) {
+			Series ser = series[s];
+			float top = s * panelHeight;
+			canvas.drawLine(plotLeft, top + textSize + plotHeight,
+				plotLeft + plotWidth, top + textSize + plotHeight, gridPaint);
+			canvas.drawText(ser.title, plotLeft, top + textSize, textPaint);
+			if (Float.isNaN(ser.yMin))
+				continue;
+			if (!ser.pathValid)
+				rebuildPath(ser);
+			canvas.save();
+			canvas.translate(plotLeft, top + textSize);
+			canvas.clipRect(0, 0, plotWidth, plotHeight);
+			canvas.translate(-scroll, 0);
+			linePaint.setColor(ser.color);
+			canvas.drawPath(ser.path, linePaint);
+			canvas.restore();
+		}
+	}
+}
@@ -0,0 +1,435 @@
+package de.pirsoft.batterymon;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import de.pirsoft.batterymon.DataLogger.DataEntry;
+
+/**
+ * Downsampled history of the battery voltage, current, temperature, BMS
+ * resistance and the time remaining predicted by the model, for long term
+ * charts.
+ *
+ * Samples are aggregated into buckets of 10 seconds, 1 minute, 10 minutes
+ * and 1 hour, each keeping min, max, mean and count per channel. Only the
+ * 10 second buckets see the samples; every completed bucket is merged
+ * into the open bucket of the next coarser level, so the cost per sample
+ * does not depend on the number of levels.
+ *
+ * Every level is a file of fixed size with one slot per bucket, used as a
+ * ring: the slot of a bucket is its number modulo the capacity, and the
+ * bucket start stored in the slot tells whether it is still there. So
+ * completing a bucket is a single write, old buckets drop out without
+ * any cleanup, and a query reads one contiguous run of slots. flush()
+ * also writes the open buckets, which are picked up again after a
+ * restart.
+ *
+ * query() serves a time range from the coarsest level that still gives a
+ * bucket per pixel and reaches back far enough.
+ *
+ * level file:
+ *   int    magic ("BMHP")
+ *   short  version
+ *   long   bucket duration in ms
+ *   int    capacity in buckets
+ *   short  channel count
+ *   byte   DataEntry number per channel, -1 for the time remaining
+ *   slots:
+ *     long   bucket start, any other value if the slot is unused
+ *     per channel:
+ *       float  min
+ *       float  max
+ *       float  mean
+ *       int    count, 0 if there was no value
+ */
+class HistoryPyramid {
+	static final int MAGIC = 0x424d4850;
+	static final short VERSION = 1;
+	/* the logged channels, followed by the time remaining */
+	static final DataEntry ENTRIES[] = {
+		DataEntry.BatteryVoltage, DataEntry.BatteryCurrent, DataEntry.Temperature,
+		DataEntry.BMSResistance
+	};
+	static final int VOLTAGE = 0;
+	static final int CURRENT = 1;
+	static final int TEMPERATURE = 2;
+	static final int RESISTANCE = 3;
+	static final int TIME_REMAINING = 4;
+	static final int CHANNELS = ENTRIES.length + 1;
+	static final long DURATIONS[] = { 10000, 60000, 600000, 3600000 };
+	/* two days, two weeks, three months and two years */
+	static final int CAPACITIES[] = { 2 * 24 * 360, 14 * 24 * 60, 90 * 24 * 6, 2 * 365 * 24 };
+	static final String NAMES[] = { "10s", "1min", "10min", "1h" };
+	static final long NONE = Long.MIN_VALUE;
+
+	/**
+	 * Buckets of one channel, as returned by query(). Reused between
+	 * queries, the arrays only grow.
+	 */
+	static class Series {
+		int size = 0;
+		long duration;
+		long start[] = new long[0];
+		float min[] = new float[0];
+		float max[] = new float[0];
+		float mean[] = new float[0];
+		int count[] = new int[0];
+
+		private void clear(long duration) {
+			this.duration = duration;
+			size = 0;
+		}
+
+		private void add(long start, float min, float max, float mean, int count) {
+			if (size == this.start.length) {
+				int n = Math.max(64, size * 2);
+				long s[] = new long[n];
+				float mi[] = new float[n];
+				float ma[] = new float[n];
+				float me[] = new float[n];
+				int c[] = new int[n];
+				System.arraycopy(this.start, 0, s, 0, size);
+				System.arraycopy(this.min, 0, mi, 0, size);
+				System.arraycopy(this.max, 0, ma, 0, size);
+				System.arraycopy(this.mean, 0, me, 0, size);
+				System.arraycopy(this.count, 0, c, 0, size);
+				this.start = s;
+				this.min = mi;
+				this.max = ma;
+				this.mean = me;
+				this.count = c;
+			}
+			this.start[size] = start;
+			this.min[size] = min;
+			this.max[size] = max;
+			this.mean[size] = mean;
+			this.count[size] = count;
+			size++;
+		}
+	}
+
+	private static class Bucket {
+		long start = NONE;
+		final float min[] = new float[CHANNELS];
+		final float max[] = new float[CHANNELS];
+		final double sum[] = new double[CHANNELS];
+		final int count[] = new int[CHANNELS];
+
+		void reset(long start) {
+			this.start = start;
+			for (int i = 0; i < CHANNELS; i++) {
+				min[i] = Float.POSITIVE_INFINITY;
+				max[i] = Float.NEGATIVE_INFINITY;
+				sum[i] = 0;
+				count[i] = 0;
+			}
+		}
+
+		boolean isEmpty() {
+			for (int c : count) {
+				if (c != 0)
+					return false;
+			}
+			return true;
+		}
+
+		void add(int channel, float v) {
+			if (v < min[channel])
+				min[channel] = v;
+			if (v > max[channel])
+				max[channel] = v;
+			sum[channel] += v;
+			count[channel]++;
+		}
+
+		void merge(Bucket o) {
+			for (int i = 0; i < CHANNELS; i++) {
+				if (o.count[i] == 0)
+					continue;
+				if (o.min[i] < min[i])
+					min[i] = o.min[i];
+				if (o.max[i] > max[i])
+					max[i] = o.max[i];
+				sum[i] += o.sum[i];
+				count[i] += o.count[i];
+			}
+		}
+
+		void write(ByteBuffer b) {
+			b.putLong(start);
+			for (int i = 0; i < CHANNELS; i++) {
+				b.putFloat(min[i]);
+				b.putFloat(max[i]);
+				b.putFloat(count[i] != 0 ? (float)(sum[i] / count[i]) : Float.NaN);
+				b.putInt(count[i]);
+			}
+		}
+
+		void read(ByteBuffer b) {
+			start = b.getLong();
+			for (int i = 0; i < CHANNELS; i++) {
+				min[i] = b.getFloat();
+				max[i] = b.getFloat();
+				float mean = b.getFloat();
+				count[i] = b.getInt();
+				sum[i] = count[i] != 0 ? (double)mean * count[i] : 0;
+			}
+		}
+	}
+
+	static final int SLOT_SIZE = 8 + CHANNELS * 16;
+
+	private static class Level {
+		final long duration;
+		final int capacity;
+		final RandomAccessFile file;
+		final long slotsOffset;
+		final Bucket open = new Bucket();
+
+		Level(File f, long duration, int capacity) throws IOException {
+			this.duration = duration;
+			this.capacity = capacity;
+			ByteBuffer header = ByteBuffer.allocate(4 + 2 + 8 + 4 + 2 + CHANNELS);
+			header.putInt(MAGIC);
+			header.putShort(VERSION);
+			header.putLong(duration);
+			header.putInt(capacity);
+			header.putShort((short)CHANNELS);
+			for (DataEntry e : ENTRIES)
+				header.put((byte)e.getNumVal());
+			header.put((byte)-1);
+			slotsOffset = header.capacity();
+			file = new RandomAccessFile(f, "rw");
+			byte existing[] = new byte[header.capacity()];
+			boolean matches = file.length() == slotsOffset + (long)capacity * SLOT_SIZE;
+			if (matches) {
+				file.readFully(existing);
+				matches = ByteBuffer.wrap(existing).equals(ByteBuffer.wrap(header.array()));
+			}
+			if (!matches) {
+				//a different layout, or a new file: start over
+				file.setLength(0);
+				file.write(header.array());
+				file.setLength(slotsOffset + (long)capacity * SLOT_SIZE);
+			}
+		}
+
+		long bucketStart(long timestamp) {
+			long r = timestamp % duration;
+			return timestamp - (r < 0 ? r + duration : r);
+		}
+
+		int slot(long start) {
+			long s = (start / duration) % capacity;
+			return (int)(s < 0 ? s + capacity : s);
+		}
+	}
+
+	private final Level levels[];
+	private final int channelIndex[] = new int[ENTRIES.length];
+	private final float scaling[] = new float[ENTRIES.length];
+	private final ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+	private final Bucket scratch = new Bucket();
+	private final long openStarts[] = new long[DURATIONS.length];
+	private byte readBuffer[] = new byte[0];
+
+	/**
+	 * @param dir directory holding one file per level
+	 * @param header the channels of the samples passed to add()
+	 */
+	HistoryPyramid(File dir, SampleLog.Header header) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create history directory " + dir);
+		for (int i = 0; i < ENTRIES.length; i++) {
+			channelIndex[i] = header.findChannel(ENTRIES[i]);
+			scaling[i] = channelIndex[i] >= 0 ? header.channels[channelIndex[i]].scaling : 0;
+		}
+		levels = new Level[DURATIONS.length];
+		try {
+			for (int l = 0; l < levels.length; l++)
+				levels[l] = new Level(new File(dir, "history-" + NAMES[l] + ".lod"),
+					DURATIONS[l], CAPACITIES[l]);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Add a sample, with the raw values as they are logged. Samples
+	 * older than the open 10 second bucket are ignored.
+	 * @param secondsRemaining see SampleSnapshot.getTimeRemaining()
+	 */
+	synchronized void add(long timestamp, int values[], int secondsRemaining) throws IOException {
+		Level first = levels[0];
+		if (first.open.start != NONE && timestamp < first.open.start)
+			return;
+		roll(0, timestamp);
+		for (int i = 0; i < ENTRIES.length; i++) {
+			int c = channelIndex[i];
+			if (c >= 0 && values[c] != SampleLog.INVALID)
+				first.open.add(i, values[c] * scaling[i]);
+		}
+		if (secondsRemaining >= 0)
+			first.open.add(TIME_REMAINING, secondsRemaining);
+	}
+
+	/**
+	 * Make the open bucket of level l the one containing timestamp,
+	 * completing the one before.
+	 */
+	private void roll(int l, long timestamp) throws IOException {
+		Level level = levels[l];
+		long start = level.bucketStart(timestamp);
+		if (level.open.start == start)
+			return;
+		if (level.open.start != NONE && !level.open.isEmpty()) {
+			store(level, level.open);
+			if (l + 1 < levels.length) {
+				roll(l + 1, level.open.start);
+				levels[l + 1].open.merge(level.open);
+			}
+		}
+		if (level.open.start == NONE && l + 1 < levels.length) {
+			//first sample after a restart: the coarser levels continue
+			//their buckets as well, or query() would skip what flush()
+			//stored of them until this level completes a bucket
+			roll(l + 1, timestamp);
+		}
+		//continue a bucket written by flush() before a restart
+		if (!load(level, start, level.open))
+			level.open.reset(start);
+	}
+
+	private void store(Level level, Bucket b) throws IOException {
+		slot.clear();
+		b.write(slot);
+		level.file.seek(level.slotsOffset + (long)level.slot(b.start) * SLOT_SIZE);
+		level.file.write(slot.array());
+	}
+
+	private boolean load(Level level, long start, Bucket dst) throws IOException {
+		level.file.seek(level.slotsOffset + (long)level.slot(start) * SLOT_SIZE);
+		level.file.readFully(slot.array());
+		slot.clear();
+		if (slot.getLong(0) != start)
+			return false;
+		dst.read(slot);
+		return true;
+	}
+
+	/**
+	 * Write the open buckets, so they survive a restart.
+	 */
+	synchronized void flush() throws IOException {
+		for (Level level : levels) {
+			if (level.open.start != NONE && !level.open.isEmpty())
+				store(level, level.open);
+		}
+	}
+
+	synchronized void close() throws IOException {
+		IOException error = null;
+		for (Level level : levels) {
+			if (level == null)
+				continue;
+			try {
+				level.file.close();
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+		if (error != null)
+			throw error;
+	}
+
+	/**
+	 * Pick the coarsest level with at least one bucket per pixel over the
+	 * range, or a coarser one if it does not reach back to from.
+	 */
+	private int chooseLevel(long from, long to, int pixels) {
+		long perPixel = (to - from) / Math.max(pixels, 1);
+		int l = 0;
+		while (l + 1 < levels.length && DURATIONS[l + 1] <= perPixel)
+			l++;
+		while (l + 1 < levels.length && to - from > DURATIONS[l] * (CAPACITIES[l] - 1))
+			l++;
+		return l;
+	}
+
+	/**
+	 * Fill out with the buckets of a channel between from and to, from
+	 * the level chosen for pixels. Buckets without values are left out.
+	 * The last bucket may still be open and include the samples so far.
+	 * @param channel VOLTAGE, CURRENT, TEMPERATURE, RESISTANCE or
+	 * TIME_REMAINING
+	 */
+	synchronized void query(int channel, long from, long to, int pixels, Series out) throws IOException {
+		int l = chooseLevel(from, to, pixels);
+		Level level = levels[l];
+		out.clear(level.duration);
+		if (to < from)
+			return;
+
+		long first = level.bucketStart(from);
+		long last = level.bucketStart(to);
+		long n = (last - first) / level.duration + 1;
+		if (n > level.capacity) {
+			first += (n - level.capacity) * level.duration;
+			n = level.capacity;
+		}
+		//the open buckets of this and the finer levels are not merged
+		//into this level yet, they are added to the buckets they fall into
+		for (int k = 0; k <= l; k++)
+			openStarts[k] = levels[k].open.start == NONE ? NONE : level.bucketStart(levels[k].open.start);
+
+		int bytes = (int)n * SLOT_SIZE;
+		if (readBuffer.length < bytes)
+			readBuffer = new byte[bytes];
+		int firstSlot = level.slot(first);
+		int run = (int)Math.min(n, level.capacity - firstSlot);
+		level.file.seek(level.slotsOffset + (long)firstSlot * SLOT_SIZE);
+		level.file.readFully(readBuffer, 0, run * SLOT_SIZE);
+		if (run < n) {
+			level.file.seek(level.slotsOffset);
+			level.file.readFully(readBuffer, run * SLOT_SIZE, (int)(n - run) * SLOT_SIZE);
+		}
+		ByteBuffer b = ByteBuffer.wrap(readBuffer);
+		long expected = first;
+		for (int i = 0; i < n; i++, expected += level.duration) {
+			if (collectOpen(l, expected)) {
+				if (scratch.count[channel] > 0)
+					out.add(expected, scratch.min[channel], scratch.max[channel],
+						(float)(scratch.sum[channel] / scratch.count[channel]), scratch.count[channel]);
+				continue;
+			}
+			int pos = i * SLOT_SIZE;
+			if (b.getLong(pos) != expected)
+				continue;
+			pos += 8 + channel * 16;
+			int count = b.getInt(pos + 12);
+			if (count > 0)
+				out.add(expected, b.getFloat(pos), b.getFloat(pos + 4), b.getFloat(pos + 8), count);
+		}
+	}
+
+	/**
+	 * Merge the open buckets of level l and the finer levels that fall
+	 * into the bucket at start into scratch.
+	 * @return false if there are none
+	 */
+	private boolean collectOpen(int l, long start) {
+		boolean found = false;
+		for (int k = 0; k <= l; k++) {
+			if (openStarts[k] != start)
+				continue;
+			if (!found)
+				scratch.reset(start);
+			scratch.merge(levels[k].open);
+			found = true;
+		}
+		return found;
+	}
+}
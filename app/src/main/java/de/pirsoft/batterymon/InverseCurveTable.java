@@ -0,0 +1,180 @@
+package de.pirsoft.batterymon;
+
+import de.pirsoft.batterymon.ChargingModel.CurveParams;
+
+/**
+ * Tabulated inverse of the battery curve ChargingModel.U_bat.
+ *
+ * Near full charge, the curve has a flat maximum, so the inverse has a
+ * square root shape there that a table over voltage cannot follow. The
+ * table is therefore over u = sqrt(vPeak - vol), in which the inverse is
+ * smooth. The accumulated charge is sampled by bisection at evenly spaced
+ * u and interpolated with a monotone piecewise cubic (PCHIP,
+ * Fritsch-Butland slopes), so a lookup is a square root, an index
+ * calculation and one cubic, and the result never overshoots between the
+ * knots.
+ *
+ * After building, the table is checked against the bisection between all
+ * knots. If it is off by more than MAX_ERROR anywhere, isAccurate() is
+ * false and the caller should keep using the bisection.
+ */
+class InverseCurveTable {
+	static final int KNOTS = 512;
+	/* in As, the bisection itself is accurate to about 0.1As */
+	static final float MAX_ERROR = 1f;
+	/* range of ChargingModel.U_bat_inv_bisect */
+	static final float MIN_VOLTAGE = 2;
+	static final float MAX_CHARGE = 20*3600;
+	/* the maximum of the curve is searched for up to this charge */
+	static final float PEAK_SEARCH_RANGE = 3600;
+
+	private final CurveParams params = new CurveParams();
+	private final float vMax;
+	private float vPeak;
+	private float cPeak;
+	private final float step;
+	private final float invStep;
+	private final float charge[] = new float[KNOTS];
+	private final float slope[] = new float[KNOTS];
+	private final float maxError;
+
+	InverseCurveTable(CurveParams cp) {
+		params.copyFrom(cp);
+		vMax = ChargingModel.U_bat(params, 0);
+		findPeak();
+		step = (float)Math.sqrt(vPeak - MIN_VOLTAGE) / (KNOTS - 1);
+		invStep = 1 / step;
+		for (int i = 0; i < KNOTS; i++) {
+			float u = i * step;
+			charge[i] = invertFalling(Math.max(MIN_VOLTAGE, vPeak - u * u));
+		}
+		computeSlopes();
+		maxError = check();
+	}
+
+	/**
+	 * Find the highest voltage of the curve, and where it is.
+	 */
+	private void findPeak() {
+		final int steps = 360;
+		float best = 0;
+		float bestV = vMax;
+		for (int i = 1; i <= steps; i++) {
+			float c = PEAK_SEARCH_RANGE * i / steps;
+			float v = ChargingModel.U_bat(params, c);
+			if (v > bestV) {
+				bestV = v;
+				best = c;
+			}
+		}
+		//refine by golden section search around the best step
+		float lo = Math.max(0, best - PEAK_SEARCH_RANGE / steps);
+		float hi = best + PEAK_SEARCH_RANGE / steps;
+		final float g = 0.618034f;
+		for (int i = 0; i < 30; i++) {
+			float a = hi - g * (hi - lo);
+			float b = lo + g * (hi - lo);
+			if (ChargingModel.U_bat(params, a) > ChargingModel.U_bat(params, b))
+				hi = b;
+			else
+				lo = a;
+		}
+		float c = (lo + hi) / 2;
+		float v = ChargingModel.U_bat(params, c);
+		if (v > bestV) {
+			bestV = v;
+			best = c;
+		}
+		vPeak = bestV;
+		cPeak = best;
+	}
+
+	/**
+	 * Bisection on the falling part of the curve, past the peak. Unlike
+	 * U_bat_inv_bisect, this also works between vMax and vPeak, so the
+	 * knots there continue the curve smoothly.
+	 */
+	private float invertFalling(float vol) {
+		float lo = cPeak;
+		float hi = MAX_CHARGE;
+		for (int i = 0; i < 40; i++) {
+			float mid = (lo + hi) / 2;
+			if (ChargingModel.U_bat(params, mid) > vol)
+				lo = mid;
+			else
+				hi = mid;
+		}
+		return (lo + hi) / 2;
+	}
+
+	private void computeSlopes() {
+		float d[] = new float[KNOTS - 1];
+		for (int i = 0; i < KNOTS - 1; i++)
+			d[i] = (charge[i + 1] - charge[i]) * invStep;
+		slope[0] = d[0];
+		slope[KNOTS - 1] = d[KNOTS - 2];
+		for (int i = 1; i < KNOTS - 1; i++) {
+			if (d[i - 1] * d[i] <= 0)
+				slope[i] = 0;
+			else
+				slope[i] = 2 * d[i - 1] * d[i] / (d[i - 1] + d[i]);
+		}
+	}
+
+	/**
+	 * @return the largest difference to the bisection, at the quarter
+	 * points between all knots
+	 */
+	private float check() {
+		float max = 0;
+		for (int i = 0; i < KNOTS - 1; i++) {
+			for (int q = 1; q < 4; q++) {
+				float u = (i + q * 0.25f) * step;
+				float v = vPeak - u * u;
+				if (v > vMax || v < MIN_VOLTAGE)
+					continue;
+				float err = Math.abs(lookup(v) - ChargingModel.U_bat_inv_bisect(params, v));
+				if (!(err <= max))
+					max = err;
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * @return true if the table was built from parameters equal to cp
+	 */
+	boolean isFor(CurveParams cp) {
+		return params.sameAs(cp);
+	}
+
+	boolean isAccurate() {
+		return maxError <= MAX_ERROR;
+	}
+
+	float getMaxError() {
+		return maxError;
+	}
+
+	/**
+	 * @return the accumulated discharge in As at battery voltage vol
+	 */
+	float lookup(float vol) {
+		if (vol < MIN_VOLTAGE)
+			return MAX_CHARGE;
+		if (vol > vMax)
+			return 0;
+		float t = (float)Math.sqrt(vPeak - vol) * invStep;
+		int k = (int)t;
+		if (k > KNOTS - 2)
+			k = KNOTS - 2;
+		float s = t - k;
+		float s1 = 1 - s;
+		float h00 = (1 + 2 * s) * s1 * s1;
+		float h10 = s * s1 * s1;
+		float h01 = s * s * (3 - 2 * s);
+		float h11 = s * s * (s - 1);
+		return h00 * charge[k] + h10 * step * slope[k] +
+			h01 * charge[k + 1] + h11 * step * slope[k + 1];
+	}
+}
@@ -0,0 +1,239 @@
+package de.pirsoft.batterymon;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import de.pirsoft.batterymon.DataLogger.Status;
+
+/**
+ * Reader for the text log (data2.log) written by older versions.
+ *
+ * Every line holds the timestamp in ms followed by the values of the
+ * collected entries as they were read from sysfs, separated by spaces.
+ * Averaged values were written as floats, values that could not be read
+ * as "n/a". The status was written as the kernel reports it, which for
+ * "Not charging" contains a space. The channels are the same as the
+ * binary log still uses, so the values are converted to the same raw
+ * integers.
+ *
+ * Lines are parsed from a reused byte buffer; malformed lines are
+ * skipped.
+ */
+class LegacyLogReader implements SampleLog.Cursor {
+	private static final byte CHARGING[] = { 'C', 'h', 'a', 'r', 'g', 'i', 'n', 'g' };
+	private static final byte DISCHARGING[] = { 'D', 'i', 's', 'c', 'h', 'a', 'r', 'g', 'i', 'n', 'g' };
+	private static final byte FULL[] = { 'F', 'u', 'l', 'l' };
+	/* "Not charging", the only status with a space */
+	private static final byte NOT[] = { 'N', 'o', 't' };
+	private static final byte NOT_CHARGING[] = { 'c', 'h', 'a', 'r', 'g', 'i', 'n', 'g' };
+
+	private final InputStream in;
+	private final SampleLog.Header header;
+	private final int values[];
+	private long timestamp;
+	private byte line[] = new byte[256];
+	private boolean eof = false;
+
+	LegacyLogReader(File file) throws IOException {
+		in = new BufferedInputStream(new FileInputStream(file), 16384);
+		/* the legacy log has the collected channels of the current
+		   sampler, in the same order */
+		header = new SampleLog.Header(new Sampler(new ScriptedPowerSupplySource()).getLogChannels(), 0);
+		values = new int[header.channels.length];
+	}
+
+	public SampleLog.Header getHeader() {
+		return header;
+	}
+
+	public boolean next() throws IOException {
+		int len;
+		while ((len = readLine()) >= 0) {
+			if (parseLine(len))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the length of the line, or -1 at the end of the file
+	 */
+	private int readLine() throws IOException {
+		if (eof)
+			return -1;
+		int len = 0;
+		int c;
+		while ((c = in.read()) >= 0 && c != '\n') {
+			if (len == line.length) {
+				byte n[] = new byte[line.length * 2];
+				System.arraycopy(line, 0, n, 0, len);
+				line = n;
+			}
+			line[len++] = (byte)c;
+		}
+		if (c < 0) {
+			eof = true;
+			if (len == 0)
+				return -1;
+		}
+		return len;
+	}
+
+	private boolean parseLine(int len) {
+		int pos = 0;
+		int column = -1;
+		while (pos < len) {
+			int start = pos;
+			while (pos < len && line[pos] != ' ')
+				pos++;
+			int end = pos;
+			pos++;
+			if (end == start)
+				continue;
+			if (column < 0) {
+				long t = parseLong(start, end);
+				if (t < 0)
+					return false;
+				timestamp = t;
+			} else if (column < values.length) {
+				byte kind = header.channels[column].kind;
+				values[column] = parseValue(kind, start, end);
+				if (kind == SampleLog.KIND_STATUS && tokenEquals(start, end, NOT))
+					pos = skipToken(pos, len, NOT_CHARGING);
+			}
+			column++;
+		}
+		return column == values.length;
+	}
+
+	/**
+	 * @return the position after the token at pos if it is text, else pos
+	 */
+	private int skipToken(int pos, int len, byte text[]) {
+		int end = pos;
+		while (end < len && line[end] != ' ')
+			end++;
+		if (!tokenEquals(pos, end, text))
+			return pos;
+		return end + 1;
+	}
+
+	private int parseValue(byte kind, int start, int end) {
+		if (kind == SampleLog.KIND_STATUS) {
+			Status s = Status.Unknown;
+			if (tokenEquals(start, end, CHARGING))
+				s = Status.Charging;
+			if (tokenEquals(start, end, DISCHARGING))
+				s = Status.Discharing;
+			if (tokenEquals(start, end, FULL))
+				s = Status.Full;
+			return s.ordinal();
+		}
+		if (kind == SampleLog.KIND_BOOLEAN) {
+			if (end - start == 1 && line[start] == '1')
+				return 1;
+			if (end - start == 1 && line[start] == '0')
+				return 0;
+			return SampleLog.INVALID;
+		}
+		return parseDecimal(start, end);
+	}
+
+	private boolean tokenEquals(int start, int end, byte text[]) {
+		if (end - start != text.length)
+			return false;
+		for (int i = 0; i < text.length; i++) {
+			if (line[start + i] != text[i])
+				return false;
+		}
+		return true;
+	}
+
+	private long parseLong(int start, int end) {
+		long val = 0;
+		for (int i = start; i < end; i++) {
+			int digit = line[i] - '0';
+			if (digit < 0 || digit > 9)
+				return -1;
+			val = val * 10 + digit;
+		}
+		return val;
+	}
+
+	/**
+	 * Parse an integer or a float as written by Float.toString(), rounded
+	 * to the nearest integer.
+	 */
+	private int parseDecimal(int start, int end) {
+		int pos = start;
+		boolean negative = false;
+		if (pos < end && (line[pos] == '-' || line[pos] == '+')) {
+			negative = line[pos] == '-';
+			pos++;
+		}
+		if (pos == end)
+			return SampleLog.INVALID;
+		long val = 0;
+		for (; pos < end && line[pos] != '.'; pos++) {
+			int digit = line[pos] - '0';
+			if (digit < 0 || digit > 9)
+				return parseSlow(start, end);
+			val = val * 10 + digit;
+			if (val > Integer.MAX_VALUE)
+				return SampleLog.INVALID;
+		}
+		if (pos < end) {
+			//the first fractional digit is enough for rounding
+			pos++;
+			if (pos < end) {
+				int digit = line[pos] - '0';
+				if (digit < 0 || digit > 9)
+					return parseSlow(start, end);
+				if (digit >= 5)
+					val++;
+			}
+			for (; pos < end; pos++) {
+				if (line[pos] < '0' || line[pos] > '9')
+					return parseSlow(start, end);
+			}
+		}
+		return (int)(negative ? -val : val);
+	}
+
+	/**
+	 * For exponential notation and everything else unusual.
+	 */
+	private int parseSlow(int start, int end) {
+		try {
+			float f = Float.parseFloat(new String(line, start, end - start, "US-ASCII"));
+			if (Float.isNaN(f) || Math.abs(f) > Integer.MAX_VALUE)
+				return SampleLog.INVALID;
+			return Math.round(f);
+		} catch (Exception e) {
+			return SampleLog.INVALID;
+		}
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public int getRaw(int channel) {
+		return values[channel];
+	}
+
+	public boolean isValid(int channel) {
+		return values[channel] != SampleLog.INVALID;
+	}
+
+	public float getFloat(int channel) {
+		return values[channel] * header.channels[channel].scaling;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,68 @@
+package de.pirsoft.batterymon;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+/**
+ * Logging for the classes that also run on a plain JVM, i.E. in the
+ * offline tools and the unit tests, where android.util.Log is not
+ * available. The methods are the ones of android.util.Log.
+ *
+ * On the device, messages go to android.util.Log, elsewhere to stderr.
+ * setSink() replaces that, i.E. to silence or collect the messages.
+ */
+class LogSink {
+	interface Sink {
+		/**
+		 * @param priority one of the android.util.Log priorities
+		 */
+		void println(int priority, String tag, String msg, @Nullable Throwable tr);
+	}
+
+	static final Sink ANDROID = new Sink() {
+		public void println(int priority, String tag, String msg, @Nullable Throwable tr) {
+			if (tr != null)
+				msg = msg + '\n' + Log.getStackTraceString(tr);
+			Log.println(priority, tag, msg);
+		}
+	};
+
+	static final Sink STDERR = new Sink() {
+		public void println(int priority, String tag, String msg, @Nullable Throwable tr) {
+			System.err.println(tag + ": " + msg);
+			if (tr != null)
+				tr.printStackTrace();
+		}
+	};
+
+	/* ART reports itself as Dalvik, too */
+	private static volatile Sink sink =
+		"Dalvik".equals(System.getProperty("java.vm.name")) ? ANDROID : STDERR;
+
+	private LogSink() {
+	}
+
+	static void setSink(Sink s) {
+		sink = s;
+	}
+
+	static void i(String tag, String msg) {
+		sink.println(Log.INFO, tag, msg, null);
+	}
+
+	static void w(String tag, String msg) {
+		sink.println(Log.WARN, tag, msg, null);
+	}
+
+	static void w(String tag, String msg, @Nullable Throwable tr) {
+		sink.println(Log.WARN, tag, msg, tr);
+	}
+
+	static void e(String tag, String msg) {
+		sink.println(Log.ERROR, tag, msg, null);
+	}
+
+	static void e(String tag, String msg, @Nullable Throwable tr) {
+		sink.println(Log.ERROR, tag, msg, tr);
+	}
+}
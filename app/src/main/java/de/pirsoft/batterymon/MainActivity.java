@@ -15,110 +15,123 @@ import android.widget.BaseAdapter;
 import android.widget.ListView;
 import android.widget.TextView;
 
-import java.io.RandomAccessFile;
-import java.text.DecimalFormat;
-
 import de.pirsoft.batterymon.DataLogger.DataEntry;
 
 
 public class MainActivity extends Activity {
 
+	/* longest value text: a long, the decimals and the unit */
+	static final int TEXT_CAPACITY = 32;
+
+	/**
+	 * A row of the list. The row keeps the text it shows and only formats
+	 * it again when update() finds the value changed, so unchanged rows cost
+	 * a comparison per sample and no allocation.
+	 */
 	static class SysEntry {
 		String name;
+		final char text[] = new char[TEXT_CAPACITY];
+		int textLength = 0;
+		/* set by update() if the text changed, cleared when it is shown */
+		boolean changed = true;
+
 		SysEntry(String name) {
 			this.name = name;
+			setText("n/a");
 		}
-		public String getData() {
-			return "n/a";
+
+		/**
+		 * Read the value of this row from the snapshot.
+		 * @return true if the shown text changed
+		 */
+		boolean update(SampleSnapshot snapshot) {
+			return false;
 		}
-	}
 
-	static class SysEntryFile extends SysEntry {
-		RandomAccessFile raf;
-		SysEntryFile(String name, String path) {
-			super(name);
-			this.name = name;
-			try {
-				raf = new RandomAccessFile(path,"r");
-			}
-			catch (Exception ignored) {
-			}
+		void showIn(TextView view) {
+			view.setText(text, 0, textLength);
+			changed = false;
 		}
-		public String getData() {
-			String line = "n/a";
-			try {
-				raf.seek(0);
-				line = raf.readLine();
-			}
-			catch (Exception e) {
-				Log.e(TAG,"Error: ",e);
+
+		boolean setText(String s) {
+			int length = Math.min(s.length(), TEXT_CAPACITY);
+			if (length == textLength) {
+				int i = 0;
+				while (i < length && text[i] == s.charAt(i))
+					i++;
+				if (i == length)
+					return false;
 			}
-			return line;
+			s.getChars(0, length, text, 0);
+			textLength = length;
+			changed = true;
+			return true;
 		}
 	}
 
-	static private class SysEntryNumeric extends SysEntryFile {
-		private float factor;
-		private DecimalFormat formatter;
-		private int average_count;
-
-		SysEntryNumeric(String name, String path, String unit, float factor) {
-			super(name, path);
+	/**
+	 * A row showing a number with three decimals, i.E. "##0.000 unit".
+	 */
+	static class SysEntryNumber extends SysEntry {
+		private static final long INVALID = Long.MIN_VALUE;
+		private final String unit;
+		private final float factor;
+		/* the shown value in thousandths */
+		private long shown = INVALID;
+
+		SysEntryNumber(String name, String unit, float factor) {
+			super(name);
+			this.unit = unit;
 			this.factor = factor;
-			this.average_count = 5;
-			formatter = new DecimalFormat("##0.000");
-			formatter.setPositiveSuffix(" " + unit);
-			formatter.setNegativeSuffix(" "+unit);
 		}
 
-		@Override
-		public String getData() {
-			String line = "n/a";
-			try {
-				float val = 0;
-				for(int i = 0; i < average_count; i++) {
-					raf.seek(0);
-					line = raf.readLine();
-					val += Integer.parseInt(line);
-				}
-				val /= average_count;
-				val *= factor;
-				line = formatter.format(val);
-			}
-			catch (Exception ignored) {
+		/**
+		 * @return true if the shown text changed
+		 */
+		boolean setNumber(boolean valid, float value) {
+			long thousandths = valid ? (long)Math.rint((double)(value * factor) * 1000) : INVALID;
+			if (thousandths == shown)
+				return false;
+			shown = thousandths;
+			if (thousandths == INVALID)
+				return setText("n/a");
+			formatThousandths(thousandths);
+			changed = true;
+			return true;
+		}
+
+		private void formatThousandths(long thousandths) {
+			int pos = TEXT_CAPACITY - unit.length() - 1;
+			text[pos] = ' ';
+			unit.getChars(0, unit.length(), text, pos + 1);
+			boolean negative = thousandths < 0;
+			long rest = Math.abs(thousandths);
+			for (int digits = 0; digits < 4 || rest != 0; digits++) {
+				if (digits == 3)
+					text[--pos] = '.';
+				text[--pos] = (char)('0' + rest % 10);
+				rest /= 10;
 			}
-			return line;
+			if (negative)
+				text[--pos] = '-';
+			textLength = TEXT_CAPACITY - pos;
+			System.arraycopy(text, pos, text, 0, textLength);
 		}
 	}
 
-	static private class SysEntryDataLoggerNumeric extends SysEntry {
+	static private class SysEntryDataLoggerNumeric extends SysEntryNumber {
 		DataEntry dataentry;
-		private float factor;
-		private DecimalFormat formatter;
 		SysEntryDataLoggerNumeric(String name, DataEntry dataentry, String unit) {
-			super(name);
-			this.dataentry = dataentry;
-			this.factor = 1.0f;
-			formatter = new DecimalFormat("##0.000");
-			formatter.setPositiveSuffix(" " + unit);
-			formatter.setNegativeSuffix(" "+unit);
+			this(name, dataentry, unit, 1.0f);
 		}
 		SysEntryDataLoggerNumeric(String name, DataEntry dataentry, String unit, float factor) {
-			super(name);
+			super(name, unit, factor);
 			this.dataentry = dataentry;
-			this.factor = factor;
-			formatter = new DecimalFormat("##0.000");
-			formatter.setPositiveSuffix(" " + unit);
-			formatter.setNegativeSuffix(" "+unit);
 		}
 		@Override
-		public String getData() {
-			String line = "n/a";
-			Float val = (Float)DataLogger.getStoredValue(dataentry);
-			if (val != null) {
-				line = formatter.format(val*factor);
-			}
-			return line;
+		boolean update(SampleSnapshot snapshot) {
+			boolean valid = snapshot.isValid(dataentry);
+			return setNumber(valid, valid ? snapshot.getFloat(dataentry) : 0);
 		}
 	}
 
@@ -129,16 +142,15 @@ public class MainActivity extends Activity {
 			this.dataentry = dataentry;
 		}
 		@Override
-		public String getData() {
+		boolean update(SampleSnapshot snapshot) {
 			String line = "n/a";
-			Boolean val = (Boolean)DataLogger.getStoredValue(dataentry);
-			if (val != null) {
-				if (val)
+			if (snapshot.isValid(dataentry)) {
+				if (snapshot.getBoolean(dataentry))
 					line = "yes";
 				else
 					line = "no";
 			}
-			return line;
+			return setText(line);
 		}
 	}
 
@@ -149,11 +161,10 @@ public class MainActivity extends Activity {
 			this.dataentry = dataentry;
 		}
 		@Override
-		public String getData() {
+		boolean update(SampleSnapshot snapshot) {
 			String line = "n/a";
-			DataLogger.Status val = (DataLogger.Status)DataLogger.getStoredValue(dataentry);
-			if (val != null) {
-				switch(val) {
+			if (snapshot.isValid(dataentry)) {
+				switch(snapshot.getStatus(dataentry)) {
 					case Charging:
 						line = "Charging";
 						break;
@@ -168,12 +179,12 @@ public class MainActivity extends Activity {
 						break;
 				}
 			}
-			return line;
+			return setText(line);
 		}
 	}
 
 	static final SysEntry sysentries[] = {
-		new SysEntryNumeric("battery/charge_full","/sys/class/power_supply/battery/charge_full","mAh",1e3f*1e-6f),
+		new SysEntryDataLoggerNumeric("battery/charge_full",DataEntry.BatteryChargeFull,"mAh",1e3f),
 		new SysEntryDataLoggerNumeric("battery/current_now",DataEntry.BatteryCurrent,"mA",1e3f),
 		new SysEntryDataLoggerNumeric("battery/voltage_now",DataEntry.BatteryVoltage,"V"),
 		new SysEntryDataLoggerStatus("battery/status",DataEntry.Status),
@@ -227,14 +238,26 @@ public class MainActivity extends Activity {
 		}
 	}
 
+	/* the views of a row, kept in its tag */
+	private static class RowViews {
+		TextView label;
+		TextView data;
+		SysEntry entry;
+	}
+
 	Handler myHandler = new Handler();
 	MyAdvancer advancer = null;
+	private ListView listview;
+	/* copy of the sample shown in the list, so all rows show the same
+	   sample */
+	private final SampleSnapshot shownSnapshot = new SampleSnapshot();
+	private long shownSequence = -1;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_main);
-		ListView listview = (ListView)findViewById(R.id.listView);
+		listview = (ListView)findViewById(R.id.listView);
 		listview.setAdapter(new BaseAdapter() {
 			@Override
 			public int getCount() {
@@ -254,16 +277,24 @@ public class MainActivity extends Activity {
 			@Override
 			public View getView(int position, View convertView, ViewGroup parent) {
 				View v;
+				RowViews row;
 				if (convertView == null) {
 					LayoutInflater inflater = getLayoutInflater();
 					v = inflater.inflate(R.layout.sys_layout, parent, false);
+					row = new RowViews();
+					row.label = (TextView) v.findViewById(R.id.sys_label);
+					row.data = (TextView) v.findViewById(R.id.sys_data);
+					v.setTag(row);
 				} else {
 					v = convertView;
+					row = (RowViews) v.getTag();
+				}
+				SysEntry entry = sysentries[position];
+				if (row.entry != entry) {
+					row.entry = entry;
+					row.label.setText(entry.name);
 				}
-				TextView label = (TextView) v.findViewById(R.id.sys_label);
-				TextView data = (TextView) v.findViewById(R.id.sys_data);
-				label.setText(sysentries[position].name);
-				data.setText(sysentries[position].getData());
+				entry.showIn(row.data);
 				return v;
 			}
 
@@ -296,6 +327,11 @@ public class MainActivity extends Activity {
 		// as you specify a parent activity in AndroidManifest.xml.
 		int id = item.getItemId();
 
+		if (id == R.id.action_history) {
+			startActivity(new Intent(this, HistoryActivity.class));
+			return true;
+		}
+
 		//noinspection SimplifiableIfStatement
 		if (id == R.id.action_settings) {
 			return true;
@@ -325,7 +361,19 @@ public class MainActivity extends Activity {
 
 	private void updateLabels() throws java.io.IOException
 	{
-		ListView listview = (ListView)findViewById(R.id.listView);
-		((BaseAdapter)listview.getAdapter()).notifyDataSetChanged();
+		if (DataLogger.getSnapshotSequence() == shownSequence)
+			return;
+		shownSequence = DataLogger.readSnapshot(shownSnapshot);
+		boolean changed = false;
+		for (SysEntry entry : sysentries)
+			changed |= entry.update(shownSnapshot);
+		if (!changed)
+			return;
+		//only the visible rows have views; the others show their text when bound
+		for (int i = 0; i < listview.getChildCount(); i++) {
+			RowViews row = (RowViews) listview.getChildAt(i).getTag();
+			if (row != null && row.entry != null && row.entry.changed)
+				row.entry.showIn(row.data);
+		}
 	}
 }
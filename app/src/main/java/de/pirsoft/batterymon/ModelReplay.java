@@ -0,0 +1,122 @@
+package de.pirsoft.batterymon;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import de.pirsoft.batterymon.DataLogger.DataEntry;
+import de.pirsoft.batterymon.DataLogger.Status;
+
+/**
+ * Feeds recorded samples into a ChargingModel as fast as possible.
+ *
+ * Samples come from any SampleLog.Cursor; open() knows the log directory
+ * of the DataLogger, single binary or compressed segments and the legacy
+ * text log. Every sample goes through ChargingModel.updateModel() just
+ * like in the service, with the snapshot reused between samples, so the
+ * values calculated by the model carry over the same way.
+ *
+ * The service replays its journal with it on startup; the command line
+ * front end is ModelReplayTool in the tools source set.
+ */
+class ModelReplay {
+	interface Listener {
+		void onSample(SampleSnapshot sample);
+	}
+
+	private static final Status statusValues[] = Status.values();
+
+	private final ChargingModel model;
+	private final SampleSnapshot snapshot = new SampleSnapshot();
+	private long samples = 0;
+	private long nanos = 0;
+
+	ModelReplay(ChargingModel model) {
+		this.model = model;
+	}
+
+	/**
+	 * Run all samples of cursor through the model.
+	 * @param listener gets the snapshot after every sample, may be null
+	 * @return the number of samples
+	 */
+	long replay(SampleLog.Cursor cursor, Listener listener) throws IOException {
+		SampleLog.Channel channels[] = cursor.getHeader().channels;
+		DataEntry entries[] = new DataEntry[channels.length];
+		for (int i = 0; i < channels.length; i++)
+			entries[i] = channels[i].entry;
+		long count = 0;
+		long start = System.nanoTime();
+		while (cursor.next()) {
+			for (int i = 0; i < channels.length; i++) {
+				DataEntry e = entries[i];
+				if (!cursor.isValid(i)) {
+					if (channels[i].kind == SampleLog.KIND_STATUS)
+						snapshot.setStatus(e, Status.Unknown);
+					else
+						snapshot.invalidate(e);
+					continue;
+				}
+				switch (channels[i].kind) {
+				case SampleLog.KIND_STATUS:
+					int raw = cursor.getRaw(i);
+					snapshot.setStatus(e, raw >= 0 && raw < statusValues.length ?
+						statusValues[raw] : Status.Unknown);
+					break;
+				case SampleLog.KIND_BOOLEAN:
+					snapshot.setBoolean(e, cursor.getRaw(i) == 1);
+					break;
+				default:
+					snapshot.setFloat(e, cursor.getFloat(i));
+					break;
+				}
+			}
+			snapshot.setTimestamp(cursor.getTimestamp());
+			model.updateModel(snapshot);
+			if (listener != null)
+				listener.onSample(snapshot);
+			count++;
+		}
+		nanos += System.nanoTime() - start;
+		samples += count;
+		return count;
+	}
+
+	long getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @return samples per second over all replay() calls so far
+	 */
+	double getSamplesPerSecond() {
+		if (nanos == 0)
+			return 0;
+		return samples * 1e9 / nanos;
+	}
+
+	/**
+	 * Open a log for replay: a DataLogger log directory, a binary or
+	 * compressed segment, or a legacy text log.
+	 */
+	static SampleLog.Cursor open(File file) throws IOException {
+		if (file.isDirectory())
+			return SegmentedLog.openRange(file, Long.MIN_VALUE, Long.MAX_VALUE);
+		int magic;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			magic = in.readInt();
+		} catch (IOException e) {
+			magic = 0;
+		} finally {
+			in.close();
+		}
+		if (magic == SampleLog.MAGIC)
+			return new SampleLog.Reader(file);
+		if (magic == SegmentCodec.MAGIC)
+			return new SegmentCodec.Reader(file);
+		return new LegacyLogReader(file);
+	}
+}
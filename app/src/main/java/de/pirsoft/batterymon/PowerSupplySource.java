@@ -0,0 +1,28 @@
+package de.pirsoft.batterymon;
+
+import java.io.IOException;
+
+/**
+ * Where the power supply values come from.
+ *
+ * Channels are named like the files below /sys/class/power_supply, i.E.
+ * "battery/current_now". Reading a channel puts its current first line
+ * into a caller supplied buffer, so sampling stays allocation free.
+ */
+interface PowerSupplySource {
+	interface Channel {
+		/**
+		 * Read the first line of the channel into buf.
+		 * @return length of the line, without the line end
+		 */
+		int read(byte buf[]) throws IOException;
+
+		void close();
+	}
+
+	/**
+	 * @param name channel name, i.E. "battery/current_now"
+	 * @throws IOException if the channel does not exist
+	 */
+	Channel open(String name) throws IOException;
+}
@@ -0,0 +1,122 @@
+package de.pirsoft.batterymon;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Recursive least squares estimator for y = theta . x, with exponential
+ * forgetting, so old data slowly loses weight.
+ *
+ * update() is O(n^2) and does not allocate.
+ */
+class RecursiveLeastSquares {
+	private final int n;
+	private final double lambda;
+	private final double theta[];
+	private final double p[][];
+	private final double px[];
+	private final double k[];
+	private long updates = 0;
+
+	/**
+	 * @param initial starting estimate, i.E. from an offline fit
+	 * @param initialVariance confidence in the starting estimate, per
+	 * parameter; larger values let the data take over faster
+	 * @param lambda forgetting factor, 1 keeps all data forever
+	 */
+	RecursiveLeastSquares(double initial[], double initialVariance[], double lambda) {
+		n = initial.length;
+		this.lambda = lambda;
+		theta = new double[n];
+		p = new double[n][n];
+		px = new double[n];
+		k = new double[n];
+		reset(initial, initialVariance);
+	}
+
+	void reset(double initial[], double initialVariance[]) {
+		for (int i = 0; i < n; i++) {
+			theta[i] = initial[i];
+			for (int j = 0; j < n; j++)
+				p[i][j] = i == j ? initialVariance[i] : 0;
+		}
+		updates = 0;
+	}
+
+	/**
+	 * Take one observation into account.
+	 * @param weight relative weight of the observation
+	 */
+	void update(double x[], double y, double weight) {
+		double denom = lambda / weight;
+		for (int i = 0; i < n; i++) {
+			double s = 0;
+			for (int j = 0; j < n; j++)
+				s += p[i][j] * x[j];
+			px[i] = s;
+			denom += x[i] * s;
+		}
+		if (!(denom > 0))
+			return;
+		double err = y;
+		for (int i = 0; i < n; i++) {
+			k[i] = px[i] / denom;
+			err -= theta[i] * x[i];
+		}
+		for (int i = 0; i < n; i++) {
+			theta[i] += k[i] * err;
+			for (int j = 0; j < n; j++)
+				p[i][j] = (p[i][j] - k[i] * px[j]) / lambda;
+		}
+		updates++;
+	}
+
+	double predict(double x[]) {
+		double s = 0;
+		for (int i = 0; i < n; i++)
+			s += theta[i] * x[i];
+		return s;
+	}
+
+	double get(int i) {
+		return theta[i];
+	}
+
+	long getUpdates() {
+		return updates;
+	}
+
+	void write(DataOutput out) throws IOException {
+		out.writeShort(n);
+		out.writeLong(updates);
+		for (int i = 0; i < n; i++)
+			out.writeDouble(theta[i]);
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++)
+				out.writeDouble(p[i][j]);
+		}
+	}
+
+	void read(DataInput in) throws IOException {
+		if (in.readShort() != n)
+			throw new IOException("Parameter count mismatch");
+		long u = in.readLong();
+		double t[] = new double[n];
+		double q[][] = new double[n][n];
+		for (int i = 0; i < n; i++)
+			t[i] = in.readDouble();
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++)
+				q[i][j] = in.readDouble();
+		}
+		for (int i = 0; i < n; i++) {
+			if (Double.isNaN(t[i]) || Double.isInfinite(t[i]))
+				throw new IOException("Invalid parameter");
+		}
+		updates = u;
+		System.arraycopy(t, 0, theta, 0, n);
+		for (int i = 0; i < n; i++)
+			System.arraycopy(q[i], 0, p[i], 0, n);
+	}
+}
@@ -0,0 +1,300 @@
+package de.pirsoft.batterymon;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import de.pirsoft.batterymon.DataLogger.DataEntry;
+
+/**
+ * Fixed-size circular journal of the most recent samples, memory mapped.
+ *
+ * The file consists of a header page, followed by capacity slots of
+ * fixed width. Since the kernel writes the mapping back on its own,
+ * appending a sample is only a few stores into memory, and the journal
+ * survives restarts of the app.
+ *
+ * header page:
+ *   int    magic ("BMJR")
+ *   short  version
+ *   short  reserved
+ *   int    capacity in slots
+ *   int    slot size in bytes
+ *   int    head, the slot the next sample goes to
+ *   int    number of valid slots
+ *   SampleLog header describing the channels
+ *
+ * slot:
+ *   long   timestamp (ms since epoch)
+ *   int    raw value per channel, SampleLog.INVALID if not available
+ *
+ * There is a single writer. Readers on any thread use a Cursor, which
+ * captures the position of the journal once, so all its samples come
+ * from the same state of the ring, and checks after reading a slot that
+ * the writer has not reached it in the meantime.
+ *
+ * A mapping can not be released before the process ends, so a journal
+ * should be opened once per process and kept.
+ */
+class SampleJournal {
+	static final int MAGIC = 0x424d4a52;
+	static final short VERSION = 1;
+	static final int HEADER_SIZE = 4096;
+
+	private static final int OFFSET_CAPACITY = 8;
+	private static final int OFFSET_SLOTSIZE = 12;
+	private static final int OFFSET_HEAD = 16;
+	private static final int OFFSET_COUNT = 20;
+	private static final int OFFSET_CHANNELS = 24;
+
+	private final MappedByteBuffer map;
+	private final SampleLog.Header header;
+	private final int capacity;
+	private final int slotSize;
+	/* written by the writer only; readers use appended */
+	private int head;
+	private int count;
+	/* head and count when the journal was opened */
+	private final int baseHead;
+	private final int baseCount;
+	/* samples appended since the journal was opened; published after
+	   the slot has been written */
+	private volatile long appended = 0;
+
+	/**
+	 * Open the journal, or create it if it does not exist or does not
+	 * match the channels and capacity.
+	 */
+	SampleJournal(File file, SampleLog.Channel channels[], int capacity) throws IOException {
+		SampleLog.Header header = new SampleLog.Header(channels, 0);
+		this.capacity = capacity;
+		slotSize = 8 + channels.length * 4;
+		if (header.size() > HEADER_SIZE - OFFSET_CHANNELS)
+			throw new IOException("Too many channels for the journal header");
+
+		long size = HEADER_SIZE + (long)capacity * slotSize;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			boolean fresh = raf.length() != size;
+			if (fresh)
+				raf.setLength(size);
+			map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			//the mapping stays valid after closing the file
+			raf.close();
+		}
+
+		if (matches(header)) {
+			this.header = readChannels();
+			head = map.getInt(OFFSET_HEAD);
+			count = map.getInt(OFFSET_COUNT);
+			if (head < 0 || head >= capacity || count < 0 || count > capacity) {
+				head = 0;
+				count = 0;
+				writePointers();
+			}
+		} else {
+			this.header = header;
+			head = 0;
+			count = 0;
+			initHeader();
+		}
+		baseHead = head;
+		baseCount = count;
+	}
+
+	private boolean matches(SampleLog.Header header) {
+		if (map.getInt(0) != MAGIC || map.getShort(4) != VERSION ||
+			map.getInt(OFFSET_CAPACITY) != capacity ||
+			map.getInt(OFFSET_SLOTSIZE) != slotSize)
+			return false;
+		try {
+			return readChannels().sameChannels(header);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private SampleLog.Header readChannels() throws IOException {
+		byte buf[] = new byte[HEADER_SIZE - OFFSET_CHANNELS];
+		for (int i = 0; i < buf.length; i++)
+			buf[i] = map.get(OFFSET_CHANNELS + i);
+		return SampleLog.Header.read(new DataInputStream(new ByteArrayInputStream(buf)));
+	}
+
+	private void initHeader() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		header.write(new DataOutputStream(bos));
+		byte buf[] = bos.toByteArray();
+		map.putInt(0, MAGIC);
+		map.putShort(4, VERSION);
+		map.putShort(6, (short)0);
+		map.putInt(OFFSET_CAPACITY, capacity);
+		map.putInt(OFFSET_SLOTSIZE, slotSize);
+		for (int i = 0; i < buf.length; i++)
+			map.put(OFFSET_CHANNELS + i, buf[i]);
+		writePointers();
+	}
+
+	private void writePointers() {
+		map.putInt(OFFSET_HEAD, head);
+		map.putInt(OFFSET_COUNT, count);
+	}
+
+	SampleLog.Header getHeader() {
+		return header;
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Store a sample, overwriting the oldest one if the journal is full.
+	 * Must only be called from one thread.
+	 */
+	void append(long timestamp, int values[]) {
+		int pos = HEADER_SIZE + head * slotSize;
+		map.putLong(pos, timestamp);
+		pos += 8;
+		for (int i = 0; i < header.channels.length; i++, pos += 4)
+			map.putInt(pos, values[i]);
+		int newHead = head + 1;
+		if (newHead >= capacity)
+			newHead = 0;
+		int newCount = count < capacity ? count + 1 : capacity;
+		head = newHead;
+		count = newCount;
+		writePointers();
+		//publish the slot only after it has been written
+		appended++;
+	}
+
+	/**
+	 * @return number of samples available
+	 */
+	int size() {
+		return (int)Math.min(baseCount + appended, capacity);
+	}
+
+	/**
+	 * Open the samples from timestamp on, as far as the journal has them.
+	 */
+	Cursor openCursor(long from) {
+		return new Cursor(from);
+	}
+
+	/**
+	 * Reads the samples of the journal, oldest first, as they were when
+	 * the cursor was opened. Every sample is copied out of its slot and
+	 * then checked against the writer: if it may have been overwritten
+	 * while it was read, the cursor skips ahead to the samples that are
+	 * still intact. Samples appended after the cursor was opened are not
+	 * returned.
+	 */
+	class Cursor implements SampleLog.Cursor {
+		/* the slot the writer may be writing right now */
+		static final int GUARD = 1;
+
+		private final long openedAppended;
+		private final int openedHead;
+		private final int openedCount;
+		private final int values[] = new int[header.channels.length];
+		private long timestamp;
+		/* the age of the next sample, counted when the cursor was opened */
+		private int age;
+
+		Cursor(long from) {
+			openedAppended = appended;
+			openedHead = (int)((baseHead + openedAppended) % capacity);
+			openedCount = (int)Math.min(baseCount + openedAppended, capacity);
+			age = findAge(from);
+		}
+
+		private int slotOffset(int age) {
+			int slot = openedHead - 1 - age;
+			if (slot < 0)
+				slot += capacity;
+			return HEADER_SIZE + slot * slotSize;
+		}
+
+		/**
+		 * @return the oldest age that can still be read safely
+		 */
+		private int oldestIntact() {
+			long written = appended - openedAppended;
+			return (int)Math.min(openedCount - 1, capacity - 1 - GUARD - written);
+		}
+
+		/**
+		 * @return the age of the oldest sample not older than from, -1 if
+		 * there is none
+		 */
+		private int findAge(long from) {
+			//timestamps grow towards age 0
+			int lo = 0;
+			int hi = oldestIntact();
+			if (hi < 0 || map.getLong(slotOffset(0)) < from)
+				return -1;
+			while (lo < hi) {
+				int mid = (lo + hi + 1) >>> 1;
+				if (map.getLong(slotOffset(mid)) >= from)
+					lo = mid;
+				else
+					hi = mid - 1;
+			}
+			return lo;
+		}
+
+		public SampleLog.Header getHeader() {
+			return header;
+		}
+
+		public boolean next() {
+			while (age >= 0) {
+				int pos = slotOffset(age);
+				timestamp = map.getLong(pos);
+				pos += 8;
+				for (int i = 0; i < values.length; i++, pos += 4)
+					values[i] = map.getInt(pos);
+				int intact = oldestIntact();
+				if (age <= intact) {
+					age--;
+					return true;
+				}
+				//overwritten while reading, continue with what is left
+				age = intact;
+			}
+			return false;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public int getRaw(int channel) {
+			return values[channel];
+		}
+
+		public boolean isValid(int channel) {
+			return values[channel] != SampleLog.INVALID;
+		}
+
+		public float getFloat(int channel) {
+			return values[channel] * header.channels[channel].scaling;
+		}
+
+		public void close() {
+		}
+	}
+
+	void force() {
+		map.force();
+	}
+}
@@ -0,0 +1,516 @@
+package de.pirsoft.batterymon;
+
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import de.pirsoft.batterymon.DataLogger.DataEntry;
+
+/**
+ * Binary sample log.
+ *
+ * The file starts with a header describing the channels, followed by
+ * fixed-width records, one per sample:
+ *
+ * header:
+ *   int    magic ("BMLG")
+ *   short  version
+ *   short  channel count
+ *   long   base timestamp (ms since epoch)
+ *   per channel:
+ *     byte   DataEntry number
+ *     byte   kind (numeric, boolean, status)
+ *     float  scaling from raw value to SI units
+ *
+ * record:
+ *   int    timestamp delta to the previous record (or the base timestamp) in ms
+ *   int    raw value per channel, INVALID if the value was not available
+ *
+ * Raw values are what the kernel reports (mostly micro-units), so no
+ * precision is lost and nothing needs to be parsed when reading back.
+ * Records with all channels INVALID only carry time and are used to span
+ * gaps that do not fit into a single delta; the Reader skips them.
+ *
+ * The Writer keeps a SampleLogIndex next to the log, which openRange()
+ * uses to start reading close to the requested time.
+ */
+class SampleLog {
+	static final int MAGIC = 0x424d4c47;
+	static final short VERSION = 1;
+	static final int INVALID = Integer.MIN_VALUE;
+
+	static final byte KIND_NUMERIC = 0;
+	static final byte KIND_BOOLEAN = 1;
+	static final byte KIND_STATUS = 2;
+
+	static class Channel {
+		final DataEntry entry;
+		final byte kind;
+		final float scaling;
+
+		Channel(DataEntry entry, byte kind, float scaling) {
+			this.entry = entry;
+			this.kind = kind;
+			this.scaling = scaling;
+		}
+
+		boolean sameAs(Channel o) {
+			return entry == o.entry && kind == o.kind && scaling == o.scaling;
+		}
+	}
+
+	static class Header {
+		final Channel channels[];
+		final long baseTimestamp;
+
+		Header(Channel channels[], long baseTimestamp) {
+			this.channels = channels;
+			this.baseTimestamp = baseTimestamp;
+		}
+
+		int size() {
+			return 4 + 2 + 2 + 8 + channels.length * 6;
+		}
+
+		int recordSize() {
+			return 4 + channels.length * 4;
+		}
+
+		int findChannel(DataEntry e) {
+			for (int i = 0; i < channels.length; i++) {
+				if (channels[i].entry == e)
+					return i;
+			}
+			return -1;
+		}
+
+		boolean sameChannels(Header o) {
+			if (channels.length != o.channels.length)
+				return false;
+			for (int i = 0; i < channels.length; i++) {
+				if (!channels[i].sameAs(o.channels[i]))
+					return false;
+			}
+			return true;
+		}
+
+		void write(DataOutput out) throws IOException {
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeShort(channels.length);
+			out.writeLong(baseTimestamp);
+			for (Channel c : channels) {
+				out.writeByte(c.entry.getNumVal());
+				out.writeByte(c.kind);
+				out.writeFloat(c.scaling);
+			}
+		}
+
+		static Header read(DataInput in) throws IOException {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a sample log");
+			short version = in.readShort();
+			if (version != VERSION)
+				throw new IOException("Unsupported sample log version " + version);
+			int count = in.readShort();
+			long baseTimestamp = in.readLong();
+			DataEntry values[] = DataEntry.values();
+			Channel channels[] = new Channel[count];
+			for (int i = 0; i < count; i++) {
+				int num = in.readByte();
+				byte kind = in.readByte();
+				float scaling = in.readFloat();
+				if (num < 0 || num >= values.length)
+					throw new IOException("Unknown channel " + num);
+				channels[i] = new Channel(values[num], kind, scaling);
+			}
+			return new Header(channels, baseTimestamp);
+		}
+	}
+
+	/**
+	 * Appends records to a sample log, creating it if needed.
+	 *
+	 * An existing log with a different channel layout is moved aside, an
+	 * existing log with the same layout is continued. A partially written
+	 * trailing record is dropped.
+	 *
+	 * Records are collected in memory and only written by flush() (or when
+	 * the buffer is full), sync() makes sure written records reach the disk.
+	 * Index entries are written after the records they point to, and not
+	 * synced; a stale index only loses entries, see SampleLogIndex.read().
+	 * If a write fails, the buffers are kept and whatever part of them
+	 * made it into the files is cut off again before the next flush(), so
+	 * the records are retried without misaligning the ones after them.
+	 */
+	static class Writer implements Closeable {
+		private final Header header;
+		private final RandomAccessFile raf;
+		private final RandomAccessFile indexRaf;
+		private final ByteBuffer pending;
+		private final ByteBuffer pendingIndex;
+		private long lastTimestamp;
+		private int recordCount;
+		/* file lengths after the last successful flush() */
+		private long end;
+		private long indexEnd;
+		private boolean truncate = false;
+
+		/**
+		 * @param bufferRecords number of records buffered before they are
+		 * written without an explicit flush()
+		 */
+		Writer(File file, Channel channels[], long now, int bufferRecords) throws IOException {
+			Header existing = null;
+			if (file.length() > 0) {
+				try {
+					existing = readHeader(file);
+				} catch (IOException ignored) {
+				}
+				if (existing == null || !existing.sameChannels(new Header(channels, now))) {
+					File aside = new File(file.getPath() + "." + file.lastModified());
+					if (!file.renameTo(aside))
+						throw new IOException("Cannot move incompatible log " + file + " aside");
+					existing = null;
+				}
+			}
+			raf = new RandomAccessFile(file, "rw");
+			SampleLogIndex index;
+			if (existing == null) {
+				header = new Header(channels, now);
+				raf.setLength(0);
+				header.write(raf);
+				lastTimestamp = header.baseTimestamp;
+				recordCount = 0;
+				index = new SampleLogIndex();
+			} else {
+				header = existing;
+				lastTimestamp = scanLastTimestamp(file);
+				long records = (raf.length() - header.size()) / header.recordSize();
+				raf.setLength(header.size() + records * header.recordSize());
+				recordCount = (int)records;
+				index = SampleLogIndex.read(file, header, records);
+				if (index == null)
+					index = SampleLogIndex.rebuild(file);
+			}
+			raf.seek(raf.length());
+			//start from a clean index file, without entries past the log
+			File indexFile = SampleLogIndex.getFile(file);
+			index.write(indexFile, header);
+			indexRaf = new RandomAccessFile(indexFile, "rw");
+			indexRaf.seek(indexRaf.length());
+			end = raf.length();
+			indexEnd = indexRaf.length();
+			pending = ByteBuffer.allocate(header.recordSize() * Math.max(bufferRecords, 1));
+			pendingIndex = ByteBuffer.allocate(SampleLogIndex.ENTRY_SIZE *
+				(Math.max(bufferRecords, 1) / SampleLogIndex.INTERVAL + 1));
+		}
+
+		Header getHeader() {
+			return header;
+		}
+
+		void append(long timestamp, int values[]) throws IOException {
+			long base = lastTimestamp;
+			long delta = timestamp - lastTimestamp;
+			while (delta > Integer.MAX_VALUE || delta < Integer.MIN_VALUE) {
+				int step = delta > 0 ? Integer.MAX_VALUE : Integer.MIN_VALUE + 1;
+				writeRecord(base, step, null);
+				base += step;
+				delta -= step;
+				//a retry after an error continues from here
+				lastTimestamp = base;
+			}
+			writeRecord(base, (int)delta, values);
+			lastTimestamp = timestamp;
+		}
+
+		/**
+		 * @param base the timestamp delta applies to
+		 */
+		private void writeRecord(long base, int delta, @Nullable int values[]) throws IOException {
+			if (pending.remaining() < header.recordSize())
+				flush();
+			if (recordCount % SampleLogIndex.INTERVAL == 0) {
+				if (pendingIndex.remaining() < SampleLogIndex.ENTRY_SIZE)
+					flush();
+				pendingIndex.putInt(recordCount);
+				pendingIndex.putLong(base);
+			}
+			pending.putInt(delta);
+			for (int i = 0; i < header.channels.length; i++)
+				pending.putInt(values != null ? values[i] : INVALID);
+			recordCount++;
+		}
+
+		void flush() throws IOException {
+			if (truncate) {
+				//the last write failed, possibly after writing a part
+				raf.setLength(end);
+				raf.seek(end);
+				indexRaf.setLength(indexEnd);
+				indexRaf.seek(indexEnd);
+				truncate = false;
+			}
+			truncate = true;
+			if (pending.position() != 0) {
+				raf.write(pending.array(), 0, pending.position());
+				end += pending.position();
+				pending.clear();
+			}
+			if (pendingIndex.position() != 0) {
+				indexRaf.write(pendingIndex.array(), 0, pendingIndex.position());
+				indexEnd += pendingIndex.position();
+				pendingIndex.clear();
+			}
+			truncate = false;
+		}
+
+		void sync() throws IOException {
+			flush();
+			raf.getFD().sync();
+		}
+
+		public void close() throws IOException {
+			try {
+				sync();
+			} finally {
+				raf.close();
+				indexRaf.close();
+			}
+		}
+
+		private static long scanLastTimestamp(File file) throws IOException {
+			Reader r = new Reader(file);
+			try {
+				while (r.nextRaw()) {
+					//only need the timestamps
+				}
+				return r.getTimestamp();
+			} finally {
+				r.close();
+			}
+		}
+	}
+
+	/**
+	 * Sequential access to samples, whatever they are stored in.
+	 *
+	 * Usage: call next() until it returns false, and use the accessors to
+	 * look at the current record. Implementations allocate nothing per
+	 * record.
+	 */
+	interface Cursor extends Closeable {
+		Header getHeader();
+
+		/**
+		 * Advance to the next sample.
+		 * @return false at the end
+		 */
+		boolean next() throws IOException;
+
+		long getTimestamp();
+
+		int getRaw(int channel);
+
+		boolean isValid(int channel);
+
+		float getFloat(int channel);
+	}
+
+	/**
+	 * Sequential reader for sample log files.
+	 */
+	static class Reader implements Cursor {
+		private final DataInputStream in;
+		private final Header header;
+		private final byte recordBytes[];
+		private final ByteBuffer record;
+		private final int values[];
+		private long timestamp;
+
+		Reader(File file) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 16384));
+			try {
+				header = Header.read(in);
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+			recordBytes = new byte[header.recordSize()];
+			record = ByteBuffer.wrap(recordBytes);
+			values = new int[header.channels.length];
+			timestamp = header.baseTimestamp;
+		}
+
+		/**
+		 * Start reading at a record, i.E. one from the SampleLogIndex.
+		 * @param base the timestamp before the record
+		 */
+		Reader(File file, int record, long base) throws IOException {
+			this(file);
+			try {
+				long skip = (long)record * header.recordSize();
+				while (skip > 0) {
+					long n = in.skip(skip);
+					if (n <= 0)
+						throw new EOFException("Record " + record + " is past the end of " + file);
+					skip -= n;
+				}
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+			timestamp = base;
+		}
+
+		public Header getHeader() {
+			return header;
+		}
+
+		/**
+		 * Advance to the next sample, skipping gap records.
+		 * @return false at the end of the log
+		 */
+		public boolean next() throws IOException {
+			while (nextRaw()) {
+				if (!isGap())
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Advance to the next record, including gap records.
+		 */
+		boolean nextRaw() throws IOException {
+			try {
+				in.readFully(recordBytes);
+			} catch (EOFException e) {
+				return false;
+			}
+			record.clear();
+			timestamp += record.getInt();
+			for (int i = 0; i < values.length; i++)
+				values[i] = record.getInt();
+			return true;
+		}
+
+		private boolean isGap() {
+			for (int v : values) {
+				if (v != INVALID)
+					return false;
+			}
+			return true;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public int getRaw(int channel) {
+			return values[channel];
+		}
+
+		public boolean isValid(int channel) {
+			return values[channel] != INVALID;
+		}
+
+		public float getFloat(int channel) {
+			return values[channel] * header.channels[channel].scaling;
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the samples of a Reader between from and to (inclusive).
+	 */
+	private static class RangeReader implements Cursor {
+		private final Reader reader;
+		private final long from;
+		private final long to;
+		private boolean done = false;
+
+		RangeReader(Reader reader, long from, long to) {
+			this.reader = reader;
+			this.from = from;
+			this.to = to;
+		}
+
+		public Header getHeader() {
+			return reader.getHeader();
+		}
+
+		public boolean next() throws IOException {
+			while (!done && reader.next()) {
+				long t = reader.getTimestamp();
+				if (t > to)
+					break;
+				if (t >= from)
+					return true;
+			}
+			done = true;
+			return false;
+		}
+
+		public long getTimestamp() {
+			return reader.getTimestamp();
+		}
+
+		public int getRaw(int channel) {
+			return reader.getRaw(channel);
+		}
+
+		public boolean isValid(int channel) {
+			return reader.isValid(channel);
+		}
+
+		public float getFloat(int channel) {
+			return reader.getFloat(channel);
+		}
+
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Open the samples between from and to (inclusive) of a log file.
+	 * Reading starts at the last index entry before from, so only the
+	 * records of the range and at most SampleLogIndex.INTERVAL before it
+	 * are read. The index is rebuilt if it is missing.
+	 */
+	static Cursor openRange(File file, long from, long to) throws IOException {
+		Header header = readHeader(file);
+		SampleLogIndex index = SampleLogIndex.load(file, header);
+		int i = index.find(from);
+		Reader reader;
+		if (i < 0)
+			reader = new Reader(file);
+		else
+			reader = new Reader(file, index.getRecord(i), index.getBase(i));
+		return new RangeReader(reader, from, to);
+	}
+
+	static Header readHeader(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			return Header.read(in);
+		} finally {
+			in.close();
+		}
+	}
+}
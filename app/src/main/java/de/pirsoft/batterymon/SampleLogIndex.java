@@ -0,0 +1,202 @@
+package de.pirsoft.batterymon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Sparse time index of a SampleLog file, kept in a sidecar file next to
+ * it.
+ *
+ * Every INTERVAL records, the index notes the record number and the
+ * timestamp the delta of that record applies to, so a Reader can start
+ * reading there instead of at the beginning of the log. The Writer
+ * appends entries as it writes records. If the sidecar is missing or does
+ * not belong to the log, load() rebuilds it from the log.
+ *
+ * Like SegmentedLog.openRange(), lookups assume the timestamps in the
+ * log do not go backwards.
+ *
+ * file:
+ *   int    magic ("BMIX")
+ *   short  version
+ *   int    interval (records between entries)
+ *   int    record size of the log
+ *   long   base timestamp of the log
+ *   entries:
+ *     int    record number
+ *     long   timestamp before the record
+ */
+class SampleLogIndex {
+	static final int MAGIC = 0x424d4958;
+	static final short VERSION = 1;
+	static final String SUFFIX = ".idx";
+	static final int INTERVAL = 256;
+	static final int HEADER_SIZE = 4 + 2 + 4 + 4 + 8;
+	static final int ENTRY_SIZE = 4 + 8;
+
+	private int records[] = new int[64];
+	private long bases[] = new long[64];
+	private int size = 0;
+
+	static File getFile(File log) {
+		return new File(log.getPath() + SUFFIX);
+	}
+
+	static void writeHeader(DataOutput out, SampleLog.Header header) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeInt(INTERVAL);
+		out.writeInt(header.recordSize());
+		out.writeLong(header.baseTimestamp);
+	}
+
+	void add(int record, long base) {
+		if (size == records.length) {
+			int r[] = new int[size * 2];
+			long b[] = new long[size * 2];
+			System.arraycopy(records, 0, r, 0, size);
+			System.arraycopy(bases, 0, b, 0, size);
+			records = r;
+			bases = b;
+		}
+		records[size] = record;
+		bases[size] = base;
+		size++;
+	}
+
+	int size() {
+		return size;
+	}
+
+	int getRecord(int i) {
+		return records[i];
+	}
+
+	long getBase(int i) {
+		return bases[i];
+	}
+
+	/**
+	 * @return the last entry all records before which are older than
+	 * from, -1 if reading has to start at the beginning
+	 */
+	int find(long from) {
+		int lo = 0;
+		int hi = size - 1;
+		int found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (bases[mid] < from) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Read the index of a log, dropping entries for records the log does
+	 * not have (yet).
+	 * @return null if the index is missing or belongs to a different log
+	 */
+	static SampleLogIndex read(File log, SampleLog.Header header, long recordCount) throws IOException {
+		File file = getFile(log);
+		if (!file.exists())
+			return null;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC ||
+				in.readShort() != VERSION ||
+				in.readInt() != INTERVAL ||
+				in.readInt() != header.recordSize() ||
+				in.readLong() != header.baseTimestamp)
+				return null;
+			SampleLogIndex index = new SampleLogIndex();
+			while (true) {
+				int record;
+				long base;
+				try {
+					record = in.readInt();
+					base = in.readLong();
+				} catch (EOFException e) {
+					//a partially written last entry is ignored
+					break;
+				}
+				if (record >= recordCount)
+					break;
+				index.add(record, base);
+			}
+			return index;
+		} catch (EOFException e) {
+			return null;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Build the index of a log by reading all of it, and write it.
+	 */
+	static SampleLogIndex rebuild(File log) throws IOException {
+		SampleLogIndex index = new SampleLogIndex();
+		SampleLog.Header header;
+		SampleLog.Reader r = new SampleLog.Reader(log);
+		try {
+			header = r.getHeader();
+			long before = r.getTimestamp();
+			for (int record = 0; r.nextRaw(); record++) {
+				if (record % INTERVAL == 0)
+					index.add(record, before);
+				before = r.getTimestamp();
+			}
+		} finally {
+			r.close();
+		}
+		index.write(getFile(log), header);
+		return index;
+	}
+
+	/**
+	 * @return the index of the log, rebuilt if the sidecar is missing or
+	 * does not belong to the log
+	 */
+	static SampleLogIndex load(File log, SampleLog.Header header) throws IOException {
+		long recordCount = (log.length() - header.size()) / header.recordSize();
+		SampleLogIndex index = read(log, header, recordCount);
+		if (index == null)
+			index = rebuild(log);
+		return index;
+	}
+
+	/**
+	 * Replace file with this index, atomically.
+	 */
+	void write(File file, SampleLog.Header header) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+			writeHeader(out, header);
+			for (int i = 0; i < size; i++) {
+				out.writeInt(records[i]);
+				out.writeLong(bases[i]);
+			}
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(file))
+			throw new IOException("Cannot rename " + tmp);
+	}
+}
@@ -0,0 +1,148 @@
+package de.pirsoft.batterymon;
+
+import de.pirsoft.batterymon.ChargingModel.State;
+import de.pirsoft.batterymon.DataLogger.DataEntry;
+import de.pirsoft.batterymon.DataLogger.Status;
+
+/**
+ * The values of one sample, indexed by DataEntry.
+ *
+ * All values are kept as primitive floats with one validity bit per
+ * DataEntry, booleans as 0/1 and Status as its ordinal, so reading and
+ * writing never boxes. Invalid values read as NaN, false and
+ * Status.Unknown.
+ *
+ * Besides the sampled and calculated values, a snapshot carries the
+ * model result and the discharge estimate for the sample and the
+ * sequence number it was published with, see SnapshotPublisher.
+ */
+class SampleSnapshot {
+	private static final DataEntry dataEntries[] = DataEntry.values();
+	private static final Status statusValues[] = Status.values();
+
+	private final float values[] = new float[dataEntries.length];
+	private long valid = 0;
+	private long timestamp = 0;
+	private State modelState = State.NotCharging;
+	private int secondsRemaining = -1;
+	private int secondsRemainingUncertainty = -1;
+	private int dischargeSecondsRemaining = -1;
+	private int dischargeSecondsRemainingUncertainty = -1;
+	private long sequence = 0;
+
+	long getTimestamp() {
+		return timestamp;
+	}
+
+	void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	boolean isValid(DataEntry e) {
+		return (valid & (1L << e.getNumVal())) != 0;
+	}
+
+	float getFloat(DataEntry e) {
+		if (!isValid(e))
+			return Float.NaN;
+		return values[e.getNumVal()];
+	}
+
+	boolean getBoolean(DataEntry e) {
+		return isValid(e) && values[e.getNumVal()] != 0;
+	}
+
+	Status getStatus(DataEntry e) {
+		if (!isValid(e))
+			return Status.Unknown;
+		return statusValues[(int)values[e.getNumVal()]];
+	}
+
+	void setFloat(DataEntry e, float v) {
+		values[e.getNumVal()] = v;
+		valid |= 1L << e.getNumVal();
+	}
+
+	void setBoolean(DataEntry e, boolean v) {
+		setFloat(e, v ? 1 : 0);
+	}
+
+	void setStatus(DataEntry e, Status s) {
+		setFloat(e, s.ordinal());
+	}
+
+	void invalidate(DataEntry e) {
+		valid &= ~(1L << e.getNumVal());
+	}
+
+	State getModelState() {
+		return modelState;
+	}
+
+	int getSecondsRemaining() {
+		return secondsRemaining;
+	}
+
+	int getSecondsRemainingUncertainty() {
+		return secondsRemainingUncertainty;
+	}
+
+	void setModelResult(State state, int secondsRemaining, int secondsRemainingUncertainty) {
+		this.modelState = state;
+		this.secondsRemaining = secondsRemaining;
+		this.secondsRemainingUncertainty = secondsRemainingUncertainty;
+	}
+
+	/**
+	 * @return seconds until the battery is empty, -1 if not discharging
+	 * or unknown
+	 */
+	int getDischargeSecondsRemaining() {
+		return dischargeSecondsRemaining;
+	}
+
+	int getDischargeSecondsRemainingUncertainty() {
+		return dischargeSecondsRemainingUncertainty;
+	}
+
+	/**
+	 * @return seconds until charging completes or, when not charging,
+	 * until the battery is empty; -1 if unknown
+	 */
+	int getTimeRemaining() {
+		if (modelState != State.NotCharging)
+			return secondsRemaining;
+		return dischargeSecondsRemaining;
+	}
+
+	void setDischargeResult(int secondsRemaining, int secondsRemainingUncertainty) {
+		this.dischargeSecondsRemaining = secondsRemaining;
+		this.dischargeSecondsRemainingUncertainty = secondsRemainingUncertainty;
+	}
+
+	/**
+	 * @return the sequence number this snapshot was published with, 0 if
+	 * it has not been published
+	 */
+	long getSequence() {
+		return sequence;
+	}
+
+	void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
+	/**
+	 * Copy everything but the sequence number.
+	 */
+	void copyFrom(SampleSnapshot o) {
+		System.arraycopy(o.values, 0, values, 0, values.length);
+		valid = o.valid;
+		timestamp = o.timestamp;
+		modelState = o.modelState;
+		secondsRemaining = o.secondsRemaining;
+		secondsRemainingUncertainty = o.secondsRemainingUncertainty;
+		dischargeSecondsRemaining = o.dischargeSecondsRemaining;
+		dischargeSecondsRemainingUncertainty = o.dischargeSecondsRemainingUncertainty;
+	}
+}
@@ -0,0 +1,449 @@
+package de.pirsoft.batterymon;
+
+import de.pirsoft.batterymon.DataLogger.DataEntry;
+import de.pirsoft.batterymon.DataLogger.Status;
+
+import java.io.IOException;
+
+/**
+ * Reads the sampled values from a PowerSupplySource.
+ *
+ * This is the part of DataLogger that does not depend on Android, so it
+ * can also run against a fake or replayed source on a plain JVM.
+ */
+class Sampler {
+	/* at most this many sub-samples of oversampled channels are filtered
+	   into one sample */
+	static final int MAX_SUBSAMPLES = 16;
+
+	private static final DataEntry dataEntries[] = DataEntry.values();
+
+	/* channel names of the sampled values, in the order of DataEntry. The
+	   values following them are calculated by the model, except the slowly
+	   changing ones read by updateSlow(). */
+	static final String CHANNEL_NAMES[] = {
+		"battery/status",
+		"battery/current_now",
+		"battery/voltage_now",
+		"bms/charge_counter_shadow",
+		"bms/resistance",
+		"qpnp-dc/voltage_now",
+		"qpnp-dc/present",
+		"qpnp-dc/current_max",
+		"usb/voltage_now",
+		"usb/present",
+		"usb/current_max",
+		"battery/temp",
+		"battery/capacity",
+	};
+
+	/* slowly changing values are read this often, and not with every
+	   sample */
+	static final long SLOW_PERIOD = 10 * 60 * 1000;
+	static final String CHARGE_FULL_NAME = "battery/charge_full";
+
+	private final SysEntryStatus sysEntStatus;
+	private final SysEntryNumeric chargeFull;
+	private long lastSlowUpdate = 0;
+	private boolean slowUpdated = false;
+	/* entries for the sampled values, in the order of DataEntry */
+	private final Entry entries[];
+
+	Sampler(PowerSupplySource source) {
+		String n[] = CHANNEL_NAMES;
+		sysEntStatus = new SysEntryStatus(source, n[0]);
+		entries = new Entry[] {
+			sysEntStatus,
+			new SysEntryOversampled(source, n[1],1e-6f,Decimator.Mode.Box),
+			new SysEntryOversampled(source, n[2],1e-6f,Decimator.Mode.Box),
+			new SysEntryNumeric(source, n[3],1e-6f),//Ah
+			new SysEntryNumeric(source, n[4],1e-6f),
+			new SysEntryOversampled(source, n[5],1e-6f,Decimator.Mode.Triangular),
+			new SysEntryBoolean(source, n[6]),
+			new SysEntryNumeric(source, n[7],1e-6f),
+			new SysEntryOversampled(source, n[8],1e-6f,Decimator.Mode.Triangular),
+			new SysEntryBoolean(source, n[9]),
+			new SysEntryNumeric(source, n[10],1e-6f),
+			new SysEntryNumeric(source, n[11],1e-1f),
+			new SysEntryNumericUncollected(source, n[12],1e-2f),
+		};
+		chargeFull = new SysEntryNumericUncollected(source, CHARGE_FULL_NAME, 1e-6f);//Ah
+	}
+
+	/**
+	 * @return the channel name a DataEntry is sampled from, or null if it
+	 * is calculated
+	 */
+	static String getChannelName(DataEntry e) {
+		if (e == DataEntry.BatteryChargeFull)
+			return CHARGE_FULL_NAME;
+		if (e.getNumVal() >= CHANNEL_NAMES.length)
+			return null;
+		return CHANNEL_NAMES[e.getNumVal()];
+	}
+
+	/**
+	 * Read the charging status, which is checked more often than the
+	 * other values.
+	 */
+	Status updateStatus() {
+		sysEntStatus.updateData();
+		return sysEntStatus.getStatus();
+	}
+
+	/**
+	 * Read the slowly changing values, if they were last read more than
+	 * SLOW_PERIOD ago. sample() stores the values read last.
+	 */
+	void updateSlow(long timestamp) {
+		if (slowUpdated && timestamp >= lastSlowUpdate &&
+			timestamp - lastSlowUpdate < SLOW_PERIOD)
+			return;
+		chargeFull.updateData();
+		lastSlowUpdate = timestamp;
+		slowUpdated = true;
+	}
+
+	/**
+	 * Read the oversampled values once more.
+	 */
+	void subSample() {
+		//noinspection ForLoopReplaceableByForEach
+		for (int i = 0; i < entries.length; i++)
+			entries[i].subSample();
+	}
+
+	/**
+	 * Take a sample of all values, except the status, which is updated
+	 * before by updateStatus().
+	 * @param snapshot receives the values, as the matching DataEntry
+	 * @param logValues receives the raw values of the collected entries,
+	 * in the order of getLogChannels()
+	 */
+	void sample(SampleSnapshot snapshot, int logValues[]) {
+		int pos = 0;
+		//noinspection ForLoopReplaceableByForEach
+		for (int i = 0; i < entries.length; i++) {
+			Entry entry = entries[i];
+			boolean alreadyUpdated = entry == sysEntStatus;
+			if (!alreadyUpdated)
+				entry.updateData();
+			if (entry.isCollected())
+				logValues[pos++] = entry.getRawValue();
+			entry.storeValue(snapshot, dataEntries[i]);
+		}
+		chargeFull.storeValue(snapshot, DataEntry.BatteryChargeFull);
+	}
+
+	SampleLog.Channel[] getLogChannels() {
+		int count = 0;
+		for (Entry entry : entries) {
+			if (entry.isCollected())
+				count++;
+		}
+		SampleLog.Channel channels[] = new SampleLog.Channel[count];
+		int pos = 0;
+		for (int i = 0; i < entries.length; i++) {
+			Entry entry = entries[i];
+			if (entry.isCollected())
+				channels[pos++] = new SampleLog.Channel(dataEntries[i], entry.getKind(), entry.getScaling());
+		}
+		return channels;
+	}
+
+	void close() {
+		for (Entry entry : entries)
+			entry.close();
+		chargeFull.close();
+	}
+
+	/**
+	 * Parse a decimal integer from buf without going through a String.
+	 * @return the value, or SampleLog.INVALID if buf does not contain a number
+	 */
+	static int parseRaw(byte[] buf, int len) {
+		int pos = 0;
+		boolean negative = false;
+		if (pos < len && (buf[pos] == '-' || buf[pos] == '+')) {
+			negative = buf[pos] == '-';
+			pos++;
+		}
+		if (pos == len)
+			return SampleLog.INVALID;
+		long val = 0;
+		for (; pos < len; pos++) {
+			int digit = buf[pos] - '0';
+			if (digit < 0 || digit > 9)
+				return SampleLog.INVALID;
+			val = val * 10 + digit;
+			if (val > Integer.MAX_VALUE)
+				return SampleLog.INVALID;
+		}
+		return (int)(negative ? -val : val);
+	}
+
+	private static boolean lineEquals(byte[] buf, int len, byte[] text) {
+		if (len != text.length)
+			return false;
+		for (int i = 0; i < len; i++) {
+			if (buf[i] != text[i])
+				return false;
+		}
+		return true;
+	}
+
+	static class Entry {
+		Entry() {
+		}
+
+		public void updateData() {
+		}
+
+		/**
+		 * Read an intermediate value, for entries that are oversampled.
+		 */
+		public void subSample() {
+		}
+
+		/**
+		 * Put the last value into the snapshot, as the given DataEntry.
+		 */
+		public void storeValue(SampleSnapshot snapshot, DataEntry e) {
+			snapshot.invalidate(e);
+		}
+
+		public boolean isCollected() {
+			return false;
+		}
+
+		/**
+		 * @return the last value in the units the kernel reports it,
+		 * or SampleLog.INVALID
+		 */
+		public int getRawValue() {
+			return SampleLog.INVALID;
+		}
+
+		public byte getKind() {
+			return SampleLog.KIND_NUMERIC;
+		}
+
+		public float getScaling() {
+			return 1;
+		}
+
+		public void close() {
+		}
+	}
+
+	/**
+	 * Entry read from a power supply channel. Reading and parsing works on
+	 * a reused buffer and primitive fields, so sampling does not allocate.
+	 */
+	static class SysEntry extends Entry {
+		String name;
+		PowerSupplySource.Channel channel;
+		final byte buf[] = new byte[20];
+		int raw = SampleLog.INVALID;
+
+		SysEntry(PowerSupplySource source, String name) {
+			this.name = name;
+			try {
+				channel = source.open(name);
+			}
+			catch (Exception ignored) {
+			}
+		}
+
+		@Override
+		public void updateData() {
+			raw = SampleLog.INVALID;
+			if (channel == null)
+				return;
+			try {
+				raw = parse(buf, channel.read(buf));
+			}
+			catch (IOException ignored) {
+			}
+		}
+
+		/**
+		 * Convert the line read from the channel into the raw value.
+		 */
+		int parse(byte[] buf, int len) {
+			return parseRaw(buf, len);
+		}
+
+		@Override
+		public int getRawValue() {
+			return raw;
+		}
+
+		public boolean isCollected() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+			if (channel != null)
+				channel.close();
+		}
+	}
+
+	static private class SysEntryStatus extends SysEntry {
+		private static final Status statusValues[] = Status.values();
+		private static final byte CHARGING[] = { 'C', 'h', 'a', 'r', 'g', 'i', 'n', 'g' };
+		private static final byte DISCHARGING[] = { 'D', 'i', 's', 'c', 'h', 'a', 'r', 'g', 'i', 'n', 'g' };
+		private static final byte FULL[] = { 'F', 'u', 'l', 'l' };
+
+		SysEntryStatus(PowerSupplySource source, String name) {
+			super(source, name);
+		}
+
+		@Override
+		int parse(byte[] buf, int len) {
+			Status s = Status.Unknown;
+			if (lineEquals(buf, len, CHARGING))
+				s = Status.Charging;
+			if (lineEquals(buf, len, DISCHARGING))
+				s = Status.Discharing;
+			if (lineEquals(buf, len, FULL))
+				s = Status.Full;
+			return s.ordinal();
+		}
+
+		@Override
+		public void updateData() {
+			super.updateData();
+			if (raw == SampleLog.INVALID)
+				raw = Status.Unknown.ordinal();
+		}
+
+		Status getStatus() {
+			return statusValues[raw];
+		}
+
+		@Override
+		public void storeValue(SampleSnapshot snapshot, DataEntry e) {
+			snapshot.setStatus(e, getStatus());
+		}
+
+		@Override
+		public byte getKind() {
+			return SampleLog.KIND_STATUS;
+		}
+	}
+
+	static private class SysEntryBoolean extends SysEntry {
+		SysEntryBoolean(PowerSupplySource source, String name) {
+			super(source, name);
+		}
+
+		@Override
+		int parse(byte[] buf, int len) {
+			if (len == 1 && buf[0] == '1')
+				return 1;
+			if (len == 1 && buf[0] == '0')
+				return 0;
+			return SampleLog.INVALID;
+		}
+
+		@Override
+		public void storeValue(SampleSnapshot snapshot, DataEntry e) {
+			if (raw != SampleLog.INVALID)
+				snapshot.setBoolean(e, raw == 1);
+			else
+				snapshot.invalidate(e);
+		}
+
+		@Override
+		public byte getKind() {
+			return SampleLog.KIND_BOOLEAN;
+		}
+	}
+
+	static class SysEntryNumeric extends SysEntry {
+		private float scaling;
+
+		SysEntryNumeric(PowerSupplySource source, String name, float scaling) {
+			super(source, name);
+			this.scaling = scaling;
+		}
+
+		@Override
+		public void storeValue(SampleSnapshot snapshot, DataEntry e) {
+			if (raw != SampleLog.INVALID)
+				snapshot.setFloat(e, raw * scaling);
+			else
+				snapshot.invalidate(e);
+		}
+
+		@Override
+		public float getScaling() {
+			return scaling;
+		}
+	}
+
+	/**
+	 * Entry that is read several times per sample period by subSample(),
+	 * and filtered down to one value per sample by updateData().
+	 */
+	static private class SysEntryOversampled extends SysEntry {
+		private final Decimator decimator;
+		private float scaling;
+		private boolean valid = false;
+		private float lastValue;
+
+		SysEntryOversampled(PowerSupplySource source, String name, float scaling, Decimator.Mode mode) {
+			super(source, name);
+			this.decimator = new Decimator(mode, MAX_SUBSAMPLES);
+			this.scaling = scaling;
+		}
+
+		@Override
+		public void subSample() {
+			super.updateData();
+			if (raw != SampleLog.INVALID)
+				decimator.add(raw);
+		}
+
+		@Override
+		public void updateData() {
+			if (decimator.isEmpty())
+				subSample();
+			valid = !decimator.isEmpty();
+			if (valid)
+				lastValue = decimator.decimate();
+		}
+
+		@Override
+		public void storeValue(SampleSnapshot snapshot, DataEntry e) {
+			if (valid)
+				snapshot.setFloat(e, lastValue * scaling);
+			else
+				snapshot.invalidate(e);
+		}
+
+		@Override
+		public int getRawValue() {
+			if (!valid)
+				return SampleLog.INVALID;
+			return Math.round(lastValue);
+		}
+
+		@Override
+		public float getScaling() {
+			return scaling;
+		}
+	}
+
+	static private class SysEntryNumericUncollected extends SysEntryNumeric {
+		SysEntryNumericUncollected(PowerSupplySource source, String name, float scaling) {
+			super(source, name, scaling);
+		}
+
+		public boolean isCollected() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package de.pirsoft.batterymon;
+
+import de.pirsoft.batterymon.ChargingModel.State;
+import de.pirsoft.batterymon.DataLogger.DataEntry;
+import de.pirsoft.batterymon.DataLogger.Status;
+
+/**
+ * Chooses the sampling period from how fast the signals change.
+ *
+ * After every sample, the sample is compared to the previous one. Steps in
+ * battery current or voltage, a change of the charging status, plugging
+ * or unplugging a supply and changes of the model state (i.E. going from
+ * constant current to constant voltage charging) switch to the minimum
+ * period. As long as nothing changes, the period doubles with every
+ * sample up to the maximum period.
+ */
+class SamplingRateController {
+	/* changes smaller than these count as flat */
+	static final float CURRENT_THRESHOLD = 0.02f; //A
+	static final float VOLTAGE_THRESHOLD = 0.005f; //V
+
+	private final long minPeriod;
+	private final long maxPeriod;
+	private long period;
+
+	private boolean haveLast = false;
+	private float lastCurrent;
+	private float lastVoltage;
+	private Status lastStatus;
+	private boolean lastUSBPresent;
+	private boolean lastDCPresent;
+	private State lastState;
+
+	SamplingRateController(long minPeriod, long maxPeriod) {
+		this.minPeriod = minPeriod;
+		this.maxPeriod = maxPeriod;
+		period = minPeriod;
+	}
+
+	/**
+	 * Take a new sample into account.
+	 * @param limit upper limit for the period, on top of the maximum period
+	 * @return the period until the next sample
+	 */
+	long update(SampleSnapshot sample, long limit) {
+		float current = sample.getFloat(DataEntry.BatteryCurrent);
+		float voltage = sample.getFloat(DataEntry.BatteryVoltage);
+		Status status = sample.getStatus(DataEntry.Status);
+		boolean usbPresent = sample.getBoolean(DataEntry.USBPresent);
+		boolean dcPresent = sample.getBoolean(DataEntry.QPNP_DC_Present);
+		State state = sample.getModelState();
+
+		boolean changed = !haveLast ||
+			status != lastStatus ||
+			usbPresent != lastUSBPresent ||
+			dcPresent != lastDCPresent ||
+			state != lastState ||
+			/* also true if either of them is NaN */
+			!(Math.abs(current - lastCurrent) < CURRENT_THRESHOLD) ||
+			!(Math.abs(voltage - lastVoltage) < VOLTAGE_THRESHOLD);
+
+		if (changed)
+			period = minPeriod;
+		else
+			period = Math.min(period * 2, maxPeriod);
+
+		haveLast = true;
+		lastCurrent = current;
+		lastVoltage = voltage;
+		lastStatus = status;
+		lastUSBPresent = usbPresent;
+		lastDCPresent = dcPresent;
+		lastState = state;
+
+		return getPeriod(limit);
+	}
+
+	/**
+	 * Start over at the minimum period, for changes noticed between
+	 * samples.
+	 */
+	void reset() {
+		period = minPeriod;
+	}
+
+	long getPeriod(long limit) {
+		return Math.max(minPeriod, Math.min(period, limit));
+	}
+}
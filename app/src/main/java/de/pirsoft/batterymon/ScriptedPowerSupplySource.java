@@ -0,0 +1,173 @@
+package de.pirsoft.batterymon;
+
+import de.pirsoft.batterymon.DataLogger.DataEntry;
+import de.pirsoft.batterymon.DataLogger.Status;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Power supply values held in memory.
+ *
+ * The values are either set by the caller, or replayed from a log, one
+ * record per advance(). Channels that have not been set, or were invalid
+ * in the log, fail to read like a missing sysfs file would. Reading and
+ * replaying do not allocate once all channels have been opened.
+ */
+class ScriptedPowerSupplySource implements PowerSupplySource {
+	private static final Status statusValues[] = Status.values();
+
+	private final Map<String, ScriptedChannel> channels = new HashMap<>();
+
+	private SampleLog.Cursor cursor;
+	private ScriptedChannel cursorChannels[];
+	private byte cursorKinds[];
+	private long timestamp;
+
+	ScriptedPowerSupplySource() {
+	}
+
+	/**
+	 * Replay the records of a log, see advance().
+	 */
+	ScriptedPowerSupplySource(SampleLog.Cursor cursor) {
+		this.cursor = cursor;
+		SampleLog.Channel logChannels[] = cursor.getHeader().channels;
+		cursorChannels = new ScriptedChannel[logChannels.length];
+		cursorKinds = new byte[logChannels.length];
+		for (int i = 0; i < logChannels.length; i++) {
+			String name = Sampler.getChannelName(logChannels[i].entry);
+			if (name != null)
+				cursorChannels[i] = getChannel(name);
+			cursorKinds[i] = logChannels[i].kind;
+		}
+	}
+
+	private ScriptedChannel getChannel(String name) {
+		ScriptedChannel c = channels.get(name);
+		if (c == null) {
+			c = new ScriptedChannel();
+			channels.put(name, c);
+		}
+		return c;
+	}
+
+	public Channel open(String name) {
+		return getChannel(name);
+	}
+
+	void set(String name, String value) {
+		ScriptedChannel c = getChannel(name);
+		byte text[] = value.getBytes();
+		System.arraycopy(text, 0, c.text, 0, Math.min(text.length, c.text.length));
+		c.len = Math.min(text.length, c.text.length);
+	}
+
+	void set(String name, int value) {
+		getChannel(name).setInt(value);
+	}
+
+	void set(DataEntry e, Status status) {
+		getChannel(Sampler.getChannelName(e)).setStatus(status);
+	}
+
+	void set(DataEntry e, boolean value) {
+		getChannel(Sampler.getChannelName(e)).setInt(value ? 1 : 0);
+	}
+
+	/**
+	 * Set a value in the units the kernel reports it, i.E. uA for currents.
+	 */
+	void set(DataEntry e, int raw) {
+		getChannel(Sampler.getChannelName(e)).setInt(raw);
+	}
+
+	/**
+	 * Make the channel fail to read.
+	 */
+	void remove(String name) {
+		getChannel(name).len = -1;
+	}
+
+	/**
+	 * Load the next record of the replayed log into the channels.
+	 * @return false at the end of the log
+	 */
+	boolean advance() throws IOException {
+		if (cursor == null || !cursor.next())
+			return false;
+		timestamp = cursor.getTimestamp();
+		for (int i = 0; i < cursorChannels.length; i++) {
+			ScriptedChannel c = cursorChannels[i];
+			if (c == null)
+				continue;
+			int raw = cursor.getRaw(i);
+			if (raw == SampleLog.INVALID)
+				c.len = -1;
+			else if (cursorKinds[i] == SampleLog.KIND_STATUS)
+				c.setStatus(raw >= 0 && raw < statusValues.length ?
+					statusValues[raw] : Status.Unknown);
+			else
+				c.setInt(raw);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the timestamp of the record loaded by the last advance()
+	 */
+	long getTimestamp() {
+		return timestamp;
+	}
+
+	private static class ScriptedChannel implements Channel {
+		private static final byte STATUS_TEXT[][] = {
+			{ 'C', 'h', 'a', 'r', 'g', 'i', 'n', 'g' },
+			{ 'D', 'i', 's', 'c', 'h', 'a', 'r', 'g', 'i', 'n', 'g' },
+			{ 'F', 'u', 'l', 'l' },
+			{ 'U', 'n', 'k', 'n', 'o', 'w', 'n' },
+		};
+
+		final byte text[] = new byte[20];
+		int len = -1;
+
+		void setInt(int value) {
+			long v = value;
+			int pos = 0;
+			if (v < 0) {
+				text[pos++] = '-';
+				v = -v;
+			}
+			int start = pos;
+			do {
+				text[pos++] = (byte)('0' + v % 10);
+				v /= 10;
+			} while (v != 0);
+			//digits are in reverse
+			for (int i = start, j = pos - 1; i < j; i++, j--) {
+				byte t = text[i];
+				text[i] = text[j];
+				text[j] = t;
+			}
+			len = pos;
+		}
+
+		void setStatus(Status status) {
+			byte t[] = STATUS_TEXT[status.ordinal()];
+			System.arraycopy(t, 0, text, 0, t.length);
+			len = t.length;
+		}
+
+		public int read(byte buf[]) throws IOException {
+			if (len < 0)
+				throw new IOException("Channel not available");
+			int n = Math.min(len, buf.length);
+			System.arraycopy(text, 0, buf, 0, n);
+			return n;
+		}
+
+		public void close() {
+		}
+	}
+}
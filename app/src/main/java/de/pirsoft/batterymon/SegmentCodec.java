@@ -0,0 +1,358 @@
+package de.pirsoft.batterymon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compression of closed sample log segments.
+ *
+ * Timestamps are stored as delta-of-delta, which is zero or tiny for
+ * regularly sampled data. Channel values are XORed with the previous value
+ * of the same channel, and only the bits that changed are stored. Since
+ * the raw values are integers, this is the integer variant of the usual
+ * XOR float encoding; slowly changing channels cost one bit per sample.
+ *
+ * file:
+ *   int    magic ("BMSZ")
+ *   short  version
+ *   SampleLog header
+ *   long   first timestamp
+ *   long   last timestamp
+ *   int    number of samples
+ *   bit stream
+ *
+ * timestamps (the first one is the first timestamp from the file header,
+ * the first delta is encoded like a delta-of-delta to zero):
+ *   '0'                       delta-of-delta is 0
+ *   '10'   + 7 bits           -63..64
+ *   '110'  + 9 bits           -255..256
+ *   '1110' + 12 bits          -2047..2048
+ *   '1111' + 64 bits          anything else
+ *
+ * values:
+ *   '0'                       same as previous value
+ *   '10'   + meaningful bits  changed bits fit into the previous window
+ *   '11'   + 5 bits leading zeros + 5 bits (length - 1) + meaningful bits
+ */
+class SegmentCodec {
+	static final int MAGIC = 0x424d535a;
+	static final short VERSION = 1;
+
+	/**
+	 * Compress a SampleLog file. Gap records are not carried over, the
+	 * timestamp encoding can represent gaps of any size.
+	 */
+	static void compress(File in, File out) throws IOException {
+		SampleLog.Header header;
+		long first = 0;
+		long last = 0;
+		int count = 0;
+		SampleLog.Reader r = new SampleLog.Reader(in);
+		try {
+			header = r.getHeader();
+			while (r.next()) {
+				if (count == 0)
+					first = r.getTimestamp();
+				last = r.getTimestamp();
+				count++;
+			}
+		} finally {
+			r.close();
+		}
+
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out), 16384));
+		try {
+			dos.writeInt(MAGIC);
+			dos.writeShort(VERSION);
+			header.write(dos);
+			dos.writeLong(first);
+			dos.writeLong(last);
+			dos.writeInt(count);
+			BitWriter bits = new BitWriter(dos);
+			Encoder enc = new Encoder(header.channels.length, first);
+			r = new SampleLog.Reader(in);
+			try {
+				int n = 0;
+				while (n < count && r.next()) {
+					enc.encode(bits, r);
+					n++;
+				}
+			} finally {
+				r.close();
+			}
+			bits.flush();
+		} finally {
+			dos.close();
+		}
+	}
+
+	private static class Encoder {
+		private long lastTimestamp;
+		private long lastDelta = 0;
+		private final int lastValues[];
+		private final int leading[];
+		private final int trailing[];
+
+		Encoder(int channels, long first) {
+			lastTimestamp = first;
+			lastValues = new int[channels];
+			leading = new int[channels];
+			trailing = new int[channels];
+			for (int i = 0; i < channels; i++) {
+				lastValues[i] = SampleLog.INVALID;
+				leading[i] = -1;
+			}
+		}
+
+		void encode(BitWriter bits, SampleLog.Cursor c) throws IOException {
+			long delta = c.getTimestamp() - lastTimestamp;
+			long dod = delta - lastDelta;
+			if (dod == 0) {
+				bits.write(0, 1);
+			} else if (dod >= -63 && dod <= 64) {
+				bits.write(2, 2);
+				bits.write(dod, 7);
+			} else if (dod >= -255 && dod <= 256) {
+				bits.write(6, 3);
+				bits.write(dod, 9);
+			} else if (dod >= -2047 && dod <= 2048) {
+				bits.write(14, 4);
+				bits.write(dod, 12);
+			} else {
+				bits.write(15, 4);
+				bits.write(dod, 64);
+			}
+			lastDelta = delta;
+			lastTimestamp = c.getTimestamp();
+
+			for (int i = 0; i < lastValues.length; i++) {
+				int v = c.getRaw(i);
+				int x = v ^ lastValues[i];
+				lastValues[i] = v;
+				if (x == 0) {
+					bits.write(0, 1);
+					continue;
+				}
+				int lz = Integer.numberOfLeadingZeros(x);
+				int tz = Integer.numberOfTrailingZeros(x);
+				if (leading[i] >= 0 && lz >= leading[i] && tz >= trailing[i]) {
+					bits.write(2, 2);
+					bits.write(x >>> trailing[i], 32 - leading[i] - trailing[i]);
+				} else {
+					int len = 32 - lz - tz;
+					bits.write(3, 2);
+					bits.write(lz, 5);
+					bits.write(len - 1, 5);
+					bits.write(x >>> tz, len);
+					leading[i] = lz;
+					trailing[i] = tz;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reader for compressed segments.
+	 */
+	static class Reader implements SampleLog.Cursor {
+		private final DataInputStream in;
+		private final BitReader bits;
+		private final SampleLog.Header header;
+		private final long firstTimestamp;
+		private final long lastTimestamp;
+		private int remaining;
+
+		private long timestamp;
+		private long delta = 0;
+		private final int values[];
+		private final int leading[];
+		private final int trailing[];
+
+		Reader(File file) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 16384));
+			try {
+				if (in.readInt() != MAGIC)
+					throw new IOException("Not a compressed segment");
+				short version = in.readShort();
+				if (version != VERSION)
+					throw new IOException("Unsupported compressed segment version " + version);
+				header = SampleLog.Header.read(in);
+				firstTimestamp = in.readLong();
+				lastTimestamp = in.readLong();
+				remaining = in.readInt();
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+			bits = new BitReader(in);
+			timestamp = firstTimestamp;
+			values = new int[header.channels.length];
+			leading = new int[header.channels.length];
+			trailing = new int[header.channels.length];
+			for (int i = 0; i < values.length; i++)
+				values[i] = SampleLog.INVALID;
+		}
+
+		long getFirstTimestamp() {
+			return firstTimestamp;
+		}
+
+		long getLastTimestamp() {
+			return lastTimestamp;
+		}
+
+		public SampleLog.Header getHeader() {
+			return header;
+		}
+
+		public boolean next() throws IOException {
+			if (remaining <= 0)
+				return false;
+			remaining--;
+
+			long dod;
+			if (bits.read(1) == 0)
+				dod = 0;
+			else if (bits.read(1) == 0)
+				dod = bits.readSigned(7);
+			else if (bits.read(1) == 0)
+				dod = bits.readSigned(9);
+			else if (bits.read(1) == 0)
+				dod = bits.readSigned(12);
+			else
+				dod = bits.read(64);
+			delta += dod;
+			timestamp += delta;
+
+			for (int i = 0; i < values.length; i++) {
+				if (bits.read(1) == 0)
+					continue;
+				if (bits.read(1) != 0) {
+					leading[i] = (int)bits.read(5);
+					int len = (int)bits.read(5) + 1;
+					trailing[i] = 32 - leading[i] - len;
+				}
+				int x = (int)bits.read(32 - leading[i] - trailing[i]) << trailing[i];
+				values[i] ^= x;
+			}
+			return true;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public int getRaw(int channel) {
+			return values[channel];
+		}
+
+		public boolean isValid(int channel) {
+			return values[channel] != SampleLog.INVALID;
+		}
+
+		public float getFloat(int channel) {
+			return values[channel] * header.channels[channel].scaling;
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read only the time range of a compressed segment.
+	 * @return first and last timestamp
+	 */
+	static long[] readTimeRange(File file) throws IOException {
+		Reader r = new Reader(file);
+		try {
+			return new long[] { r.getFirstTimestamp(), r.getLastTimestamp() };
+		} finally {
+			r.close();
+		}
+	}
+
+	private static class BitWriter {
+		private final OutputStream out;
+		private long acc = 0;
+		private int count = 0;
+
+		BitWriter(OutputStream out) {
+			this.out = out;
+		}
+
+		/**
+		 * write the lowest n bits of value, most significant bit first
+		 */
+		void write(long value, int n) throws IOException {
+			while (n > 0) {
+				int take = Math.min(n, 56 - count);
+				long part = (value >>> (n - take)) & ((1L << take) - 1);
+				acc = (acc << take) | part;
+				count += take;
+				n -= take;
+				while (count >= 8) {
+					count -= 8;
+					out.write((int)(acc >>> count));
+				}
+				acc &= (1L << count) - 1;
+			}
+		}
+
+		void flush() throws IOException {
+			if (count > 0) {
+				out.write((int)(acc << (8 - count)));
+				acc = 0;
+				count = 0;
+			}
+		}
+	}
+
+	private static class BitReader {
+		private final InputStream in;
+		private long acc = 0;
+		private int count = 0;
+
+		BitReader(InputStream in) {
+			this.in = in;
+		}
+
+		long read(int n) throws IOException {
+			long result = 0;
+			while (n > 0) {
+				if (count == 0) {
+					int b = in.read();
+					if (b < 0)
+						throw new EOFException();
+					acc = b;
+					count = 8;
+				}
+				int take = Math.min(n, count);
+				long part = (acc >>> (count - take)) & ((1L << take) - 1);
+				result = (result << take) | part;
+				count -= take;
+				n -= take;
+			}
+			return result;
+		}
+
+		long readSigned(int n) throws IOException {
+			long v = read(n);
+			//values are stored as two's complement in n bits, except the
+			//positive maximum which wraps to the negative minimum
+			long half = 1L << (n - 1);
+			if (v > half)
+				v -= 1L << n;
+			return v;
+		}
+	}
+}
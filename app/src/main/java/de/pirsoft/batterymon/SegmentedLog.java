@@ -0,0 +1,537 @@
+package de.pirsoft.batterymon;
+
+import android.support.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sample log split into one segment per day.
+ *
+ * The segment of the current day is a plain SampleLog file that is
+ * appended to. When a sample for a new day arrives, the segment is closed
+ * and compressed with SegmentCodec on a background thread. A manifest in
+ * the same directory lists all segments with their time ranges, so
+ * readers only need to open the segments covering the time they are
+ * interested in.
+ *
+ * The manifest is only rewritten, and synced, when a segment is added or
+ * changes state. The last timestamp of the open segment is therefore not
+ * up to date in it, and readers treat the open segment as reaching to the
+ * end. A manifest that is unreadable or does not match the segment files,
+ * i.E. after a power loss, is rebuilt from the files.
+ *
+ * manifest, one line per segment, ordered by time:
+ *   name first-timestamp last-timestamp state
+ * where state is one of open, closed (not yet compressed), compressed.
+ */
+class SegmentedLog {
+	static final String TAG = "Batterymon.SegmentedLog";
+	static final String MANIFEST = "manifest";
+	static final String RAW_SUFFIX = ".log";
+	static final String COMPRESSED_SUFFIX = ".bmz";
+	/* close() waits this long for a compression in progress */
+	static final long COMPRESSION_WAIT_SECONDS = 10;
+
+	/* raw segment files being compressed by any instance in this process */
+	private static final Set<String> compressing = new HashSet<>();
+
+	enum SegmentState { open, closed, compressed }
+
+	static class Segment {
+		final String name;
+		long first;
+		long last;
+		SegmentState state;
+
+		Segment(String name, long first, long last, SegmentState state) {
+			this.name = name;
+			this.first = first;
+			this.last = last;
+			this.state = state;
+		}
+
+		String getFileName() {
+			return name + (state == SegmentState.compressed ? COMPRESSED_SUFFIX : RAW_SUFFIX);
+		}
+
+		boolean overlaps(long from, long to) {
+			//the manifest does not follow the end of the open segment
+			return (state == SegmentState.open || last >= from) && first <= to;
+		}
+	}
+
+	private final File dir;
+	private final SampleLog.Channel channels[];
+	private final int bufferRecords;
+	private final List<Segment> segments;
+	private final ExecutorService compressor;
+
+	private SampleLog.Writer writer;
+	private Segment current;
+	private long currentEnd;
+
+	SegmentedLog(File dir, SampleLog.Channel channels[], int bufferRecords) throws IOException {
+		this.dir = dir;
+		this.channels = channels;
+		this.bufferRecords = bufferRecords;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create log directory " + dir);
+		compressor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, TAG);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+
+		segments = readManifest(dir);
+		//in case it was rebuilt
+		writeManifest();
+		//anything left open by the last run is continued if it is still
+		//the same day, otherwise it gets closed
+		for (Segment s : segments) {
+			if (s.state == SegmentState.open)
+				current = s;
+			if (s.state == SegmentState.closed)
+				scheduleCompression(s);
+		}
+		if (current != null)
+			currentEnd = endOfDay(current.first);
+	}
+
+	private static long endOfDay(long timestamp) {
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(timestamp);
+		c.set(Calendar.HOUR_OF_DAY, 0);
+		c.set(Calendar.MINUTE, 0);
+		c.set(Calendar.SECOND, 0);
+		c.set(Calendar.MILLISECOND, 0);
+		c.add(Calendar.DAY_OF_MONTH, 1);
+		return c.getTimeInMillis();
+	}
+
+	void append(long timestamp, int values[]) throws IOException {
+		if (current != null && timestamp >= currentEnd)
+			closeCurrent();
+		if (current == null) {
+			current = new Segment("seg-" + timestamp, timestamp, timestamp, SegmentState.open);
+			currentEnd = endOfDay(timestamp);
+			synchronized (this) {
+				segments.add(current);
+			}
+			writeManifest();
+		}
+		if (writer == null)
+			writer = new SampleLog.Writer(new File(dir, current.getFileName()), channels,
+				timestamp, bufferRecords);
+		writer.append(timestamp, values);
+		synchronized (this) {
+			if (timestamp > current.last)
+				current.last = timestamp;
+		}
+	}
+
+	private void closeCurrent() throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+		Segment s = current;
+		current = null;
+		synchronized (this) {
+			s.state = SegmentState.closed;
+		}
+		writeManifest();
+		scheduleCompression(s);
+	}
+
+	/**
+	 * Write out buffered samples.
+	 */
+	void flush() throws IOException {
+		if (writer != null)
+			writer.flush();
+	}
+
+	void sync() throws IOException {
+		if (writer != null)
+			writer.sync();
+	}
+
+	/**
+	 * Close the open segment file. The segment itself stays open and is
+	 * continued on the next start. Waits for a compression in progress,
+	 * so it is not started again by the next instance while it runs.
+	 */
+	void close() throws IOException {
+		try {
+			if (writer != null)
+				writer.close();
+			writer = null;
+			writeManifest();
+		} finally {
+			compressor.shutdown();
+			try {
+				if (!compressor.awaitTermination(COMPRESSION_WAIT_SECONDS, TimeUnit.SECONDS))
+					LogSink.w(TAG, "Compression still running after close");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void scheduleCompression(final Segment s) {
+		compressor.execute(new Runnable() {
+			public void run() {
+				compress(s);
+			}
+		});
+	}
+
+	private void compress(Segment s) {
+		File raw = new File(dir, s.name + RAW_SUFFIX);
+		synchronized (compressing) {
+			if (!compressing.add(raw.getAbsolutePath())) {
+				LogSink.w(TAG, "Already compressing " + raw);
+				return;
+			}
+		}
+		try {
+			compress(s, raw);
+		} finally {
+			synchronized (compressing) {
+				compressing.remove(raw.getAbsolutePath());
+			}
+		}
+	}
+
+	private void compress(Segment s, File raw) {
+		File out = new File(dir, s.name + COMPRESSED_SUFFIX);
+		File tmp = new File(dir, s.name + COMPRESSED_SUFFIX + ".tmp");
+		try {
+			SegmentCodec.compress(raw, tmp);
+			if (!tmp.renameTo(out))
+				throw new IOException("Cannot rename " + tmp);
+			synchronized (this) {
+				s.state = SegmentState.compressed;
+			}
+			writeManifest();
+			if (!raw.delete())
+				LogSink.w(TAG, "Cannot delete " + raw);
+			//noinspection ResultOfMethodCallIgnored
+			SampleLogIndex.getFile(raw).delete();
+			LogSink.i(TAG, "Compressed " + raw + " to " + out.length() + " bytes");
+		} catch (IOException e) {
+			LogSink.e(TAG, "Error compressing " + raw, e);
+			//noinspection ResultOfMethodCallIgnored
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * @return a copy of the segment list
+	 */
+	synchronized List<Segment> getSegments() {
+		List<Segment> result = new ArrayList<>();
+		for (Segment s : segments)
+			result.add(new Segment(s.name, s.first, s.last, s.state));
+		return result;
+	}
+
+	private synchronized void writeManifest() throws IOException {
+		//called from the logging and the compression thread
+		StringBuilder sb = new StringBuilder();
+		for (Segment s : segments) {
+			sb.append(s.name).append(' ')
+				.append(s.first).append(' ')
+				.append(s.last).append(' ')
+				.append(s.state.name()).append('\n');
+		}
+		File tmp = new File(dir, MANIFEST + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			Writer w = new OutputStreamWriter(fos, "US-ASCII");
+			w.write(sb.toString());
+			w.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(new File(dir, MANIFEST)))
+			throw new IOException("Cannot replace manifest in " + dir);
+	}
+
+	/**
+	 * Read the manifest of a log directory. If it is missing, unreadable
+	 * or does not list exactly the segment files in the directory, it is
+	 * rebuilt from the segment files.
+	 */
+	static List<Segment> readManifest(File dir) throws IOException {
+		File file = new File(dir, MANIFEST);
+		List<Segment> result = new ArrayList<>();
+		if (!file.exists())
+			return rebuildManifest(dir);
+		BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "US-ASCII"));
+		try {
+			String line;
+			while ((line = r.readLine()) != null) {
+				String parts[] = line.split(" ");
+				try {
+					if (parts.length != 4)
+						throw new IllegalArgumentException();
+					result.add(new Segment(parts[0], Long.parseLong(parts[1]),
+						Long.parseLong(parts[2]), SegmentState.valueOf(parts[3])));
+				} catch (IllegalArgumentException e) {
+					LogSink.w(TAG, "Bad manifest line, rebuilding: " + line);
+					return rebuildManifest(dir);
+				}
+			}
+		} finally {
+			r.close();
+		}
+		if (!matchesFiles(dir, result)) {
+			LogSink.w(TAG, "Manifest does not match the segments, rebuilding");
+			return rebuildManifest(dir);
+		}
+		return result;
+	}
+
+	/**
+	 * @return true if the segments are exactly the ones in dir, in the
+	 * state their files are in
+	 */
+	private static boolean matchesFiles(File dir, List<Segment> segments) {
+		Set<String> listed = new HashSet<>();
+		for (Segment s : segments) {
+			if (!listed.add(s.name) || !new File(dir, s.getFileName()).exists())
+				return false;
+		}
+		Set<String> present = new HashSet<>();
+		File files[] = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				String name = segmentName(f.getName());
+				if (name != null)
+					present.add(name);
+			}
+		}
+		return present.equals(listed);
+	}
+
+	/**
+	 * @return the name of the segment a file holds, null for other files
+	 */
+	@Nullable
+	private static String segmentName(String fileName) {
+		if (fileName.endsWith(COMPRESSED_SUFFIX))
+			return fileName.substring(0, fileName.length() - COMPRESSED_SUFFIX.length());
+		if (fileName.endsWith(RAW_SUFFIX))
+			return fileName.substring(0, fileName.length() - RAW_SUFFIX.length());
+		return null;
+	}
+
+	private static List<Segment> rebuildManifest(File dir) {
+		List<Segment> result = new ArrayList<>();
+		File files[] = dir.listFiles();
+		if (files == null)
+			return result;
+		for (File f : files) {
+			String name = f.getName();
+			try {
+				if (name.endsWith(COMPRESSED_SUFFIX)) {
+					long range[] = SegmentCodec.readTimeRange(f);
+					result.add(new Segment(name.substring(0, name.length() - COMPRESSED_SUFFIX.length()),
+						range[0], range[1], SegmentState.compressed));
+				} else if (name.endsWith(RAW_SUFFIX)) {
+					String base = name.substring(0, name.length() - RAW_SUFFIX.length());
+					if (new File(dir, base + COMPRESSED_SUFFIX).exists())
+						continue;
+					SampleLog.Reader r = new SampleLog.Reader(f);
+					//a segment without samples yet starts at its base
+					long first = r.getHeader().baseTimestamp;
+					long last = first;
+					try {
+						if (r.next()) {
+							first = r.getTimestamp();
+							last = first;
+							while (r.next())
+								last = r.getTimestamp();
+						}
+					} finally {
+						r.close();
+					}
+					result.add(new Segment(base, first, last, SegmentState.closed));
+				}
+			} catch (IOException e) {
+				LogSink.w(TAG, "Ignoring unreadable segment " + f, e);
+			}
+		}
+		Collections.sort(result, new Comparator<Segment>() {
+			public int compare(Segment a, Segment b) {
+				return a.first < b.first ? -1 : (a.first == b.first ? 0 : 1);
+			}
+		});
+		//the last one may have been open; it is closed on the next day
+		if (!result.isEmpty()) {
+			Segment last = result.get(result.size() - 1);
+			if (last.state == SegmentState.closed)
+				last.state = SegmentState.open;
+		}
+		return result;
+	}
+
+	/**
+	 * Open the samples between from and to (inclusive) of a log directory.
+	 * Only the segments overlapping the range are opened. Segments with a
+	 * different channel layout than the first one are skipped.
+	 */
+	static SampleLog.Cursor openRange(File dir, long from, long to) throws IOException {
+		List<Segment> selected = new ArrayList<>();
+		for (Segment s : readManifest(dir)) {
+			if (s.overlaps(from, to))
+				selected.add(s);
+		}
+		return new RangeCursor(dir, selected, from, to);
+	}
+
+	/**
+	 * @return the timestamp of the last sample of a log directory, or
+	 * Long.MIN_VALUE if there is none. Only the end of the last segment
+	 * with samples is read.
+	 */
+	static long getLastTimestamp(File dir) throws IOException {
+		List<Segment> segments = readManifest(dir);
+		for (int i = segments.size() - 1; i >= 0; i--) {
+			Segment s = segments.get(i);
+			//the manifest may lag behind the segment, but not be ahead
+			SampleLog.Cursor c = openSegment(dir, s, s.last, Long.MAX_VALUE);
+			long last = Long.MIN_VALUE;
+			try {
+				while (c.next())
+					last = c.getTimestamp();
+			} finally {
+				c.close();
+			}
+			if (last != Long.MIN_VALUE)
+				return last;
+		}
+		return Long.MIN_VALUE;
+	}
+
+	/**
+	 * Raw segments are opened at the index entry before from, compressed
+	 * ones are read from the start.
+	 */
+	static private SampleLog.Cursor openSegment(File dir, Segment s, long from, long to) throws IOException {
+		if (s.state == SegmentState.compressed)
+			return new SegmentCodec.Reader(new File(dir, s.getFileName()));
+		try {
+			return SampleLog.openRange(new File(dir, s.getFileName()), from, to);
+		} catch (IOException e) {
+			//it may just have been compressed
+			return new SegmentCodec.Reader(new File(dir, s.name + COMPRESSED_SUFFIX));
+		}
+	}
+
+	private static class RangeCursor implements SampleLog.Cursor {
+		private final File dir;
+		private final List<Segment> segments;
+		private final long from;
+		private final long to;
+		private int next = 0;
+		@Nullable
+		private SampleLog.Cursor cursor;
+		private SampleLog.Header header;
+
+		RangeCursor(File dir, List<Segment> segments, long from, long to) throws IOException {
+			this.dir = dir;
+			this.segments = segments;
+			this.from = from;
+			this.to = to;
+			openNext();
+			if (cursor != null)
+				header = cursor.getHeader();
+			else
+				header = new SampleLog.Header(new SampleLog.Channel[0], from);
+		}
+
+		private void openNext() throws IOException {
+			if (cursor != null)
+				cursor.close();
+			cursor = null;
+			while (cursor == null && next < segments.size()) {
+				SampleLog.Cursor c = openSegment(dir, segments.get(next++), from, to);
+				if (header == null || header.sameChannels(c.getHeader()))
+					cursor = c;
+				else
+					c.close();
+			}
+		}
+
+		public SampleLog.Header getHeader() {
+			return header;
+		}
+
+		public boolean next() throws IOException {
+			while (cursor != null) {
+				while (cursor.next()) {
+					long t = cursor.getTimestamp();
+					if (t > to) {
+						//segments are ordered by time
+						cursor.close();
+						cursor = null;
+						return false;
+					}
+					if (t >= from)
+						return true;
+				}
+				openNext();
+			}
+			return false;
+		}
+
+		public long getTimestamp() {
+			//noinspection ConstantConditions
+			return cursor.getTimestamp();
+		}
+
+		public int getRaw(int channel) {
+			//noinspection ConstantConditions
+			return cursor.getRaw(channel);
+		}
+
+		public boolean isValid(int channel) {
+			//noinspection ConstantConditions
+			return cursor.isValid(channel);
+		}
+
+		public float getFloat(int channel) {
+			//noinspection ConstantConditions
+			return cursor.getFloat(channel);
+		}
+
+		public void close() throws IOException {
+			if (cursor != null)
+				cursor.close();
+			cursor = null;
+		}
+	}
+}
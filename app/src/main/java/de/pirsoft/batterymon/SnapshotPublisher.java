@@ -0,0 +1,57 @@
+package de.pirsoft.batterymon;
+
+/**
+ * Publishes one SampleSnapshot per collection cycle to readers on any
+ * thread, without locks.
+ *
+ * The writer fills a new snapshot, and publishes it with the next
+ * sequence number through a volatile reference. A published snapshot is
+ * never written again, so the volatile read of the reference is all a
+ * reader needs to see it completely; there is nothing to validate or
+ * retry. This costs one small snapshot per sampling period, which is at
+ * least a second.
+ *
+ * There must be only one writer.
+ */
+class SnapshotPublisher {
+	private long sequence = 0;
+	private volatile SampleSnapshot latest = new SampleSnapshot();
+
+	/**
+	 * Get the snapshot to fill for the next publication. It starts out as
+	 * a copy of the latest published one.
+	 */
+	SampleSnapshot begin() {
+		SampleSnapshot s = new SampleSnapshot();
+		s.copyFrom(latest);
+		return s;
+	}
+
+	/**
+	 * Publish the snapshot obtained from begin(). It must not be modified
+	 * afterwards.
+	 */
+	void publish(SampleSnapshot s) {
+		s.setSequence(++sequence);
+		latest = s;
+	}
+
+	/**
+	 * @return the sequence number of the latest snapshot, 0 if nothing
+	 * has been published yet. Readers can skip work if it did not change.
+	 */
+	long getSequence() {
+		return latest.getSequence();
+	}
+
+	/**
+	 * Copy the latest snapshot into dst, i.E. to keep a reusable copy.
+	 * @return the sequence number of the copy
+	 */
+	long read(SampleSnapshot dst) {
+		SampleSnapshot s = latest;
+		dst.copyFrom(s);
+		dst.setSequence(s.getSequence());
+		return s.getSequence();
+	}
+}
@@ -0,0 +1,56 @@
+package de.pirsoft.batterymon;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads the power supply values from sysfs, or from a directory laid out
+ * the same way. The files are kept open and read again from the start,
+ * which is how sysfs attributes are refreshed.
+ */
+class SysfsPowerSupplySource implements PowerSupplySource {
+	static final String SYSFS_ROOT = "/sys/class/power_supply";
+
+	final File root;
+
+	SysfsPowerSupplySource() {
+		this(new File(SYSFS_ROOT));
+	}
+
+	SysfsPowerSupplySource(File root) {
+		this.root = root;
+	}
+
+	public Channel open(String name) throws IOException {
+		return new FileChannel(new RandomAccessFile(new File(root, name), "r"));
+	}
+
+	static int readLine(RandomAccessFile raf, byte[] buf) throws IOException {
+		raf.seek(0);
+		int len = raf.read(buf);
+		//find the line end
+		int pos = 0;
+		while(pos < len && buf[pos] != '\n') pos++;
+		return pos;
+	}
+
+	private static class FileChannel implements Channel {
+		private final RandomAccessFile raf;
+
+		FileChannel(RandomAccessFile raf) {
+			this.raf = raf;
+		}
+
+		public int read(byte buf[]) throws IOException {
+			return readLine(raf, buf);
+		}
+
+		public void close() {
+			try {
+				raf.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+}
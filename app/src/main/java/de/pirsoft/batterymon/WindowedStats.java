@@ -0,0 +1,206 @@
+package de.pirsoft.batterymon;
+
+/**
+ * Streaming statistics of one signal over several time windows at once,
+ * i.E. the last 10 seconds, minute and 10 minutes.
+ *
+ * The samples of the longest window are kept in a ring buffer shared by
+ * all windows. Every window tracks its mean and variance incrementally
+ * with Welford's method, adding new samples and removing the ones that
+ * fall out of it, and its minimum and maximum with monotonic deques, so
+ * add() and all queries are O(1) amortized. Removing samples from the
+ * running moments slowly accumulates rounding error, so every window
+ * recomputes them from the buffer once per buffer length.
+ */
+class WindowedStats {
+	class Window {
+		final long duration;
+		private long start;
+		private double mean;
+		private double m2;
+		private int sinceAnchor;
+		private final long minDeque[] = new long[capacity];
+		private int minHead;
+		private int minSize;
+		private final long maxDeque[] = new long[capacity];
+		private int maxHead;
+		private int maxSize;
+
+		Window(long duration) {
+			this.duration = duration;
+		}
+
+		int getCount() {
+			return (int)(next - start);
+		}
+
+		/**
+		 * @return the mean, NaN if the window is empty
+		 */
+		float getMean() {
+			if (getCount() == 0)
+				return Float.NaN;
+			return (float)mean;
+		}
+
+		/**
+		 * @return the sample variance, NaN with less than two samples
+		 */
+		float getVariance() {
+			int n = getCount();
+			if (n < 2)
+				return Float.NaN;
+			return (float)(Math.max(0, m2) / (n - 1));
+		}
+
+		float getStdDev() {
+			return (float)Math.sqrt(getVariance());
+		}
+
+		float getMin() {
+			if (minSize == 0)
+				return Float.NaN;
+			return value(minDeque[minHead]);
+		}
+
+		float getMax() {
+			if (maxSize == 0)
+				return Float.NaN;
+			return value(maxDeque[maxHead]);
+		}
+
+		private void add(long seq, float x) {
+			int n = getCount();
+			double delta = x - mean;
+			mean += delta / n;
+			m2 += delta * (x - mean);
+
+			while (minSize > 0 && value(minDeque[(minHead + minSize - 1) % capacity]) >= x)
+				minSize--;
+			minDeque[(minHead + minSize) % capacity] = seq;
+			minSize++;
+			while (maxSize > 0 && value(maxDeque[(maxHead + maxSize - 1) % capacity]) <= x)
+				maxSize--;
+			maxDeque[(maxHead + maxSize) % capacity] = seq;
+			maxSize++;
+		}
+
+		/**
+		 * Drop the samples that are older than the window at now, and the
+		 * one that the next sample overwrites in the buffer.
+		 */
+		private void expire(long now) {
+			long limit = Math.max(start, next + 1 - capacity);
+			while (limit < next && timestamps[index(limit)] <= now - duration)
+				limit++;
+			while (start < limit) {
+				float x = value(start);
+				start++;
+				int n = getCount();
+				if (n == 0) {
+					mean = 0;
+					m2 = 0;
+				} else {
+					double delta = x - mean;
+					mean -= delta / n;
+					m2 -= delta * (x - mean);
+				}
+			}
+			while (minSize > 0 && minDeque[minHead] < start) {
+				minHead = (minHead + 1) % capacity;
+				minSize--;
+			}
+			while (maxSize > 0 && maxDeque[maxHead] < start) {
+				maxHead = (maxHead + 1) % capacity;
+				maxSize--;
+			}
+		}
+
+		/**
+		 * Recompute the moments from the buffer, to get rid of the
+		 * rounding error of the removals.
+		 */
+		private void reanchor() {
+			sinceAnchor = 0;
+			int n = getCount();
+			if (n == 0) {
+				mean = 0;
+				m2 = 0;
+				return;
+			}
+			double sum = 0;
+			for (long s = start; s < next; s++)
+				sum += value(s);
+			double m = sum / n;
+			double q = 0;
+			for (long s = start; s < next; s++) {
+				double d = value(s) - m;
+				q += d * d;
+			}
+			mean = m;
+			m2 = q;
+		}
+	}
+
+	private final int capacity;
+	private final long timestamps[];
+	private final float values[];
+	/* sequence number of the next sample */
+	private long next = 0;
+	private final Window windows[];
+
+	/**
+	 * @param durations the window lengths in ms
+	 * @param capacity the most samples the longest window needs to hold
+	 */
+	WindowedStats(long durations[], int capacity) {
+		this.capacity = capacity;
+		timestamps = new long[capacity];
+		values = new float[capacity];
+		windows = new Window[durations.length];
+		for (int i = 0; i < durations.length; i++)
+			windows[i] = new Window(durations[i]);
+	}
+
+	private int index(long seq) {
+		return (int)(seq % capacity);
+	}
+
+	private float value(long seq) {
+		return values[index(seq)];
+	}
+
+	void add(long timestamp, float x) {
+		for (Window w : windows)
+			w.expire(timestamp);
+		long seq = next;
+		timestamps[index(seq)] = timestamp;
+		values[index(seq)] = x;
+		next++;
+		for (Window w : windows) {
+			w.add(seq, x);
+			if (++w.sinceAnchor >= capacity)
+				w.reanchor();
+		}
+	}
+
+	void clear() {
+		next = 0;
+		for (Window w : windows) {
+			w.start = 0;
+			w.mean = 0;
+			w.m2 = 0;
+			w.sinceAnchor = 0;
+			w.minSize = 0;
+			w.maxSize = 0;
+		}
+	}
+
+	Window getWindow(int i) {
+		return windows[i];
+	}
+
+	int getWindowCount() {
+		return windows.length;
+	}
+}
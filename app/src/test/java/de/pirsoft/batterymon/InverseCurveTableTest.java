@@ -0,0 +1,73 @@
+package de.pirsoft.batterymon;
+
+import org.junit.Test;
+
+import de.pirsoft.batterymon.ChargingModel.CurveParams;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InverseCurveTableTest {
+	static final int STEPS = 20000;
+
+	/**
+	 * Compare the table with the bisection over the whole voltage range,
+	 * at far more points than the table checks itself at.
+	 */
+	private static void assertMatchesBisection(CurveParams cp) {
+		InverseCurveTable table = new InverseCurveTable(cp);
+		assertTrue("max error " + table.getMaxError(), table.isAccurate());
+		assertTrue(table.isFor(cp));
+		float vMax = ChargingModel.U_bat(cp, 0);
+		float lo = InverseCurveTable.MIN_VOLTAGE;
+		for (int i = 0; i <= STEPS; i++) {
+			float v = lo + (vMax - lo) * i / STEPS;
+			assertEquals("at " + v + "V", ChargingModel.U_bat_inv_bisect(cp, v), table.lookup(v),
+				InverseCurveTable.MAX_ERROR);
+		}
+		//outside of the curve, like the bisection
+		assertEquals(InverseCurveTable.MAX_CHARGE, table.lookup(lo - 0.1f), 0);
+		assertEquals(0, table.lookup(vMax + 0.1f), 0);
+	}
+
+	@Test
+	public void stockParams() {
+		assertMatchesBisection(new CurveParams());
+	}
+
+	@Test
+	public void perturbedParams() {
+		//roughly what refining the linear parameters from a charge session
+		//does to the curve
+		float factors[] = { 0.9f, 0.97f, 1.03f, 1.1f };
+		for (float f : factors) {
+			CurveParams cp = new CurveParams();
+			cp.A *= f;
+			assertMatchesBisection(cp);
+
+			cp = new CurveParams();
+			cp.K1 *= f;
+			cp.K3 *= 2 - f;
+			assertMatchesBisection(cp);
+
+			cp = new CurveParams();
+			cp.K2 *= f;
+			cp.A += (1 - f) * 0.1f;
+			assertMatchesBisection(cp);
+		}
+	}
+
+	@Test
+	public void rebuiltForChangedParams() {
+		CurveParams cp = new CurveParams();
+		float v = 3.8f;
+		float before = ChargingModel.U_bat_inv(cp, v);
+		assertTrue(cp.inverseTable.isFor(cp));
+		cp.A += 0.05f;
+		assertTrue(!cp.inverseTable.isFor(cp));
+		float after = ChargingModel.U_bat_inv(cp, v);
+		assertTrue(cp.inverseTable.isFor(cp));
+		assertTrue(after > before);
+		assertEquals(ChargingModel.U_bat_inv_bisect(cp, v), after, InverseCurveTable.MAX_ERROR);
+	}
+}
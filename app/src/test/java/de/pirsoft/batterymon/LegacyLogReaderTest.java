@@ -0,0 +1,86 @@
+package de.pirsoft.batterymon;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import de.pirsoft.batterymon.DataLogger.Status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LegacyLogReaderTest {
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("data2", ".log");
+	}
+
+	@After
+	public void tearDown() {
+		//noinspection ResultOfMethodCallIgnored
+		file.delete();
+	}
+
+	private void write(String text) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(text.getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * status current voltage counter resistance dc-voltage dc-present
+	 * dc-current-max usb-voltage usb-present usb-current-max temp
+	 */
+	private static String line(long timestamp, String status, String current) {
+		return timestamp + " " + status + " " + current +
+			" 4100000 1500000 150000 n/a n/a n/a 5000000 1 1500000 312\n";
+	}
+
+	@Test
+	public void readsNotCharging() throws IOException {
+		write(line(1000, "Charging", "500000.4") +
+			line(2000, "Not charging", "0.0") +
+			line(3000, "Discharging", "-250000.6") +
+			"garbage\n" +
+			line(4000, "Not charging", "-1.0"));
+		LegacyLogReader r = new LegacyLogReader(file);
+		try {
+			assertTrue(r.next());
+			assertEquals(1000, r.getTimestamp());
+			assertEquals(Status.Charging.ordinal(), r.getRaw(0));
+			assertEquals(500000, r.getRaw(1));
+
+			assertTrue(r.next());
+			assertEquals(2000, r.getTimestamp());
+			assertEquals(Status.Unknown.ordinal(), r.getRaw(0));
+			assertEquals(0, r.getRaw(1));
+			assertEquals(4100000, r.getRaw(2));
+			assertEquals(312, r.getRaw(11));
+
+			assertTrue(r.next());
+			assertEquals(3000, r.getTimestamp());
+			assertEquals(Status.Discharing.ordinal(), r.getRaw(0));
+			assertEquals(-250001, r.getRaw(1));
+			assertFalse(r.isValid(5));
+
+			//the malformed line is skipped
+			assertTrue(r.next());
+			assertEquals(4000, r.getTimestamp());
+			assertEquals(Status.Unknown.ordinal(), r.getRaw(0));
+			assertEquals(-1, r.getRaw(1));
+			assertFalse(r.next());
+		} finally {
+			r.close();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package de.pirsoft.batterymon;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import de.pirsoft.batterymon.DataLogger.DataEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SampleJournalTest {
+	static final int CAPACITY = 8;
+	static final SampleLog.Channel CHANNELS[] = {
+		new SampleLog.Channel(DataEntry.BatteryCurrent, SampleLog.KIND_NUMERIC, 1e-6f),
+		new SampleLog.Channel(DataEntry.BatteryVoltage, SampleLog.KIND_NUMERIC, 1e-6f),
+	};
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("journal", ".journal");
+	}
+
+	@After
+	public void tearDown() {
+		//noinspection ResultOfMethodCallIgnored
+		file.delete();
+	}
+
+	private static void append(SampleJournal j, long from, long to) {
+		int values[] = new int[CHANNELS.length];
+		for (long t = from; t <= to; t++) {
+			values[0] = (int)(-t * 1000);
+			values[1] = t % 3 == 0 ? SampleLog.INVALID : (int)(3800000 + t);
+			j.append(t, values);
+		}
+	}
+
+	/**
+	 * Check the cursor returns the samples from first to last, with the
+	 * values written by append().
+	 */
+	private static void assertSamples(SampleLog.Cursor c, long first, long last) throws IOException {
+		for (long t = first; t <= last; t++) {
+			assertTrue("sample " + t, c.next());
+			assertEquals(t, c.getTimestamp());
+			assertEquals(-t * 1000, c.getRaw(0));
+			assertEquals(t % 3 != 0, c.isValid(1));
+			if (t % 3 != 0)
+				assertEquals((3800000 + t) * 1e-6f, c.getFloat(1), 1e-6);
+		}
+		assertFalse(c.next());
+	}
+
+	@Test
+	public void wrapsAround() throws IOException {
+		SampleJournal j = new SampleJournal(file, CHANNELS, CAPACITY);
+		append(j, 1, 3);
+		assertEquals(3, j.size());
+		assertSamples(j.openCursor(Long.MIN_VALUE), 1, 3);
+
+		append(j, 4, 20);
+		assertEquals(CAPACITY, j.size());
+		//the oldest slot is the one the writer goes to next
+		assertSamples(j.openCursor(Long.MIN_VALUE), 20 - CAPACITY + 2, 20);
+		assertSamples(j.openCursor(17), 17, 20);
+		assertSamples(j.openCursor(21), 1, 0);
+	}
+
+	@Test
+	public void reopens() throws IOException {
+		SampleJournal j = new SampleJournal(file, CHANNELS, CAPACITY);
+		append(j, 1, 11);
+		j.force();
+
+		j = new SampleJournal(file, CHANNELS, CAPACITY);
+		assertEquals(CAPACITY, j.size());
+		assertSamples(j.openCursor(Long.MIN_VALUE), 11 - CAPACITY + 2, 11);
+		append(j, 12, 13);
+		assertSamples(j.openCursor(Long.MIN_VALUE), 13 - CAPACITY + 2, 13);
+
+		//a different layout starts over
+		j = new SampleJournal(file, CHANNELS, CAPACITY * 2);
+		assertEquals(0, j.size());
+		assertSamples(j.openCursor(Long.MIN_VALUE), 1, 0);
+	}
+
+	@Test
+	public void skipsOverwrittenSamples() throws IOException {
+		SampleJournal j = new SampleJournal(file, CHANNELS, CAPACITY);
+		append(j, 1, CAPACITY);
+		SampleJournal.Cursor c = j.openCursor(Long.MIN_VALUE);
+		assertTrue(c.next());
+		assertEquals(2, c.getTimestamp());
+
+		//overwrites 1 to 3, and 4 may be next
+		append(j, CAPACITY + 1, CAPACITY + 3);
+		assertSamples(c, 5, CAPACITY);
+	}
+}
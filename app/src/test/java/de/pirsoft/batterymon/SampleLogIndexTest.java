@@ -0,0 +1,120 @@
+package de.pirsoft.batterymon;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import de.pirsoft.batterymon.DataLogger.DataEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class SampleLogIndexTest {
+	static final SampleLog.Channel CHANNELS[] = {
+		new SampleLog.Channel(DataEntry.BatteryCurrent, SampleLog.KIND_NUMERIC, 1e-6f),
+	};
+	static final long BASE = 1000000;
+	/* a few index intervals, with a gap that needs extra records */
+	static final int COUNT = SampleLogIndex.INTERVAL * 5 + 17;
+	static final int GAP_AT = SampleLogIndex.INTERVAL * 2 + 3;
+	static final long GAP = 3L * Integer.MAX_VALUE;
+
+	private File log;
+
+	@Before
+	public void setUp() throws IOException {
+		log = File.createTempFile("samples", ".log");
+		SampleLog.Writer w = new SampleLog.Writer(log, CHANNELS, BASE, 100);
+		int values[] = new int[1];
+		for (int n = 0; n < COUNT; n++) {
+			values[0] = n;
+			w.append(timestamp(n), values);
+		}
+		w.close();
+	}
+
+	@After
+	public void tearDown() {
+		//noinspection ResultOfMethodCallIgnored
+		SampleLogIndex.getFile(log).delete();
+		//noinspection ResultOfMethodCallIgnored
+		log.delete();
+	}
+
+	private static long timestamp(int n) {
+		return BASE + 1000L * (n + 1) + (n >= GAP_AT ? GAP : 0);
+	}
+
+	/**
+	 * Check openRange() returns exactly the samples between from and to.
+	 */
+	private void assertRange(long from, long to) throws IOException {
+		SampleLog.Cursor c = SampleLog.openRange(log, from, to);
+		try {
+			for (int n = 0; n < COUNT; n++) {
+				long t = timestamp(n);
+				if (t < from || t > to)
+					continue;
+				assertTrue("sample " + n, c.next());
+				assertEquals(t, c.getTimestamp());
+				assertEquals(n, c.getRaw(0));
+			}
+			assertFalse(c.next());
+		} finally {
+			c.close();
+		}
+	}
+
+	private void assertRanges() throws IOException {
+		assertRange(Long.MIN_VALUE, Long.MAX_VALUE);
+		for (int n = 0; n < COUNT; n += 97) {
+			assertRange(timestamp(n), timestamp(Math.min(n + 300, COUNT - 1)));
+			assertRange(timestamp(n) - 1, timestamp(n) + 1);
+		}
+		assertRange(timestamp(GAP_AT - 1) + 1, timestamp(GAP_AT) - 1);
+		assertRange(timestamp(COUNT - 1) + 1, Long.MAX_VALUE);
+	}
+
+	@Test
+	public void rangeQuery() throws IOException {
+		assertRanges();
+	}
+
+	@Test
+	public void rebuildMatchesWrittenIndex() throws IOException {
+		SampleLog.Header header = SampleLog.readHeader(log);
+		SampleLogIndex written = SampleLogIndex.read(log, header, Long.MAX_VALUE);
+		assertNotNull(written);
+		SampleLogIndex rebuilt = SampleLogIndex.rebuild(log);
+		assertTrue(written.size() > 5);
+		assertEquals(written.size(), rebuilt.size());
+		for (int i = 0; i < written.size(); i++) {
+			assertEquals(written.getRecord(i), rebuilt.getRecord(i));
+			assertEquals(written.getBase(i), rebuilt.getBase(i));
+		}
+	}
+
+	@Test
+	public void rebuildsMissingIndex() throws IOException {
+		assertTrue(SampleLogIndex.getFile(log).delete());
+		assertRanges();
+		assertTrue(SampleLogIndex.getFile(log).exists());
+	}
+
+	@Test
+	public void rebuildsForeignIndex() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(SampleLogIndex.getFile(log), "rw");
+		try {
+			raf.writeInt(0);
+		} finally {
+			raf.close();
+		}
+		assertRanges();
+	}
+}
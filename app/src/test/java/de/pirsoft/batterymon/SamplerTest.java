@@ -0,0 +1,146 @@
+package de.pirsoft.batterymon;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import de.pirsoft.batterymon.DataLogger.DataEntry;
+import de.pirsoft.batterymon.DataLogger.Status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SamplerTest {
+	private File root;
+	private FakePowerSupplySource source;
+	private Sampler sampler;
+	private final SampleSnapshot snapshot = new SampleSnapshot();
+	private int logValues[];
+
+	@Before
+	public void setUp() throws IOException {
+		root = File.createTempFile("power_supply", "");
+		//noinspection ResultOfMethodCallIgnored
+		root.delete();
+		source = new FakePowerSupplySource(root);
+		//a charging phone on USB, without a qpnp-dc supply
+		source.set("battery/status", "Charging");
+		source.set("battery/current_now", "500000");
+		source.set("battery/voltage_now", "4100000");
+		source.set("bms/charge_counter_shadow", "1500000");
+		source.set("bms/resistance", "150000");
+		source.set("usb/voltage_now", "5000000");
+		source.set("usb/present", "1");
+		source.set("usb/current_max", "1500000");
+		source.set("battery/temp", "312");
+		source.set("battery/capacity", "87");
+		source.set("battery/charge_full", "3000000");
+		sampler = new Sampler(source);
+		logValues = new int[sampler.getLogChannels().length];
+	}
+
+	@After
+	public void tearDown() {
+		sampler.close();
+		delete(root);
+	}
+
+	private static void delete(File f) {
+		File files[] = f.listFiles();
+		if (files != null) {
+			for (File c : files)
+				delete(c);
+		}
+		//noinspection ResultOfMethodCallIgnored
+		f.delete();
+	}
+
+	private void sample(long timestamp) {
+		sampler.updateStatus();
+		sampler.updateSlow(timestamp);
+		sampler.sample(snapshot, logValues);
+	}
+
+	@Test
+	public void parsesValues() {
+		assertEquals(Status.Charging, sampler.updateStatus());
+		sample(0);
+		assertEquals(Status.Charging, snapshot.getStatus(DataEntry.Status));
+		assertEquals(0.5f, snapshot.getFloat(DataEntry.BatteryCurrent), 1e-6);
+		assertEquals(4.1f, snapshot.getFloat(DataEntry.BatteryVoltage), 1e-6);
+		assertEquals(1.5f, snapshot.getFloat(DataEntry.BMSChargeCounter), 1e-6);
+		assertEquals(0.15f, snapshot.getFloat(DataEntry.BMSResistance), 1e-6);
+		assertEquals(5f, snapshot.getFloat(DataEntry.USBVoltage), 1e-6);
+		assertTrue(snapshot.getBoolean(DataEntry.USBPresent));
+		assertEquals(1.5f, snapshot.getFloat(DataEntry.USBCurrentMax), 1e-6);
+		assertEquals(31.2f, snapshot.getFloat(DataEntry.Temperature), 1e-5);
+		assertEquals(0.87f, snapshot.getFloat(DataEntry.BatteryCapacity), 1e-6);
+		assertEquals(3f, snapshot.getFloat(DataEntry.BatteryChargeFull), 1e-6);
+		//missing channels
+		assertFalse(snapshot.isValid(DataEntry.QPNP_DC_Voltage));
+		assertFalse(snapshot.isValid(DataEntry.QPNP_DC_Present));
+		assertFalse(snapshot.isValid(DataEntry.QPNP_DC_CurrentMax));
+
+		//the log gets the raw values of the collected channels
+		SampleLog.Channel channels[] = sampler.getLogChannels();
+		for (int i = 0; i < channels.length; i++) {
+			if (channels[i].entry == DataEntry.BatteryCurrent)
+				assertEquals(500000, logValues[i]);
+			if (channels[i].entry == DataEntry.QPNP_DC_Voltage)
+				assertEquals(SampleLog.INVALID, logValues[i]);
+			//capacity is shown, but not logged
+			assertTrue(channels[i].entry != DataEntry.BatteryCapacity);
+		}
+	}
+
+	@Test
+	public void parsesChanges() throws IOException {
+		sample(0);
+		source.set("battery/status", "Full");
+		source.set("usb/present", "0");
+		source.set("battery/current_now", "-250000");
+		source.set("bms/resistance", "garbage");
+		source.set("battery/temp", "-45");
+		assertEquals(Status.Full, sampler.updateStatus());
+		sample(1000);
+		assertEquals(Status.Full, snapshot.getStatus(DataEntry.Status));
+		assertFalse(snapshot.getBoolean(DataEntry.USBPresent));
+		assertEquals(-0.25f, snapshot.getFloat(DataEntry.BatteryCurrent), 1e-6);
+		assertFalse(snapshot.isValid(DataEntry.BMSResistance));
+		assertEquals(-4.5f, snapshot.getFloat(DataEntry.Temperature), 1e-5);
+
+		source.set("battery/status", "Not charging");
+		assertEquals(Status.Unknown, sampler.updateStatus());
+	}
+
+	@Test
+	public void averagesSubSamples() throws IOException {
+		sampler.updateStatus();
+		int currents[] = { 100000, 200000, 600000 };
+		for (int c : currents) {
+			source.set("battery/current_now", Integer.toString(c));
+			sampler.subSample();
+		}
+		sampler.updateSlow(0);
+		sampler.sample(snapshot, logValues);
+		assertEquals(0.3f, snapshot.getFloat(DataEntry.BatteryCurrent), 1e-6);
+		//without sub-samples, the value is read once
+		source.set("battery/current_now", "700000");
+		sample(1000);
+		assertEquals(0.7f, snapshot.getFloat(DataEntry.BatteryCurrent), 1e-6);
+	}
+
+	@Test
+	public void readsSlowValuesRarely() throws IOException {
+		sample(0);
+		source.set("battery/charge_full", "2900000");
+		sample(Sampler.SLOW_PERIOD - 1);
+		assertEquals(3f, snapshot.getFloat(DataEntry.BatteryChargeFull), 1e-6);
+		sample(Sampler.SLOW_PERIOD);
+		assertEquals(2.9f, snapshot.getFloat(DataEntry.BatteryChargeFull), 1e-6);
+	}
+}
@@ -0,0 +1,101 @@
+package de.pirsoft.batterymon;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import de.pirsoft.batterymon.DataLogger.DataEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentCodecTest {
+	static final SampleLog.Channel CHANNELS[] = {
+		new SampleLog.Channel(DataEntry.BatteryCurrent, SampleLog.KIND_NUMERIC, 1e-6f),
+		new SampleLog.Channel(DataEntry.BatteryVoltage, SampleLog.KIND_NUMERIC, 1e-6f),
+		new SampleLog.Channel(DataEntry.Status, SampleLog.KIND_STATUS, 1),
+	};
+
+	private File raw;
+	private File compressed;
+
+	@Before
+	public void setUp() throws IOException {
+		raw = File.createTempFile("segment", SegmentedLog.RAW_SUFFIX);
+		compressed = File.createTempFile("segment", SegmentedLog.COMPRESSED_SUFFIX);
+		//noinspection ResultOfMethodCallIgnored
+		raw.delete();
+	}
+
+	@After
+	public void tearDown() {
+		//noinspection ResultOfMethodCallIgnored
+		raw.delete();
+		//noinspection ResultOfMethodCallIgnored
+		compressed.delete();
+	}
+
+	/**
+	 * Check the compressed file holds exactly the samples of the raw one.
+	 */
+	private void assertRoundTrip(int count) throws IOException {
+		SegmentCodec.compress(raw, compressed);
+		SampleLog.Reader expected = new SampleLog.Reader(raw);
+		SegmentCodec.Reader actual = new SegmentCodec.Reader(compressed);
+		long first = 0;
+		long last = 0;
+		try {
+			assertTrue(expected.getHeader().sameChannels(actual.getHeader()));
+			for (int n = 0; n < count; n++) {
+				assertTrue(expected.next());
+				assertTrue("sample " + n, actual.next());
+				assertEquals(expected.getTimestamp(), actual.getTimestamp());
+				for (int i = 0; i < CHANNELS.length; i++)
+					assertEquals(expected.getRaw(i), actual.getRaw(i));
+				if (n == 0)
+					first = expected.getTimestamp();
+				last = expected.getTimestamp();
+			}
+			assertFalse(expected.next());
+			assertFalse(actual.next());
+		} finally {
+			expected.close();
+			actual.close();
+		}
+		if (count > 0) {
+			long range[] = SegmentCodec.readTimeRange(compressed);
+			assertEquals(first, range[0]);
+			assertEquals(last, range[1]);
+		}
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		Random random = new Random(1);
+		SampleLog.Writer w = new SampleLog.Writer(raw, CHANNELS, 1000000, 64);
+		int values[] = new int[CHANNELS.length];
+		long t = 1000000;
+		int count = 5000;
+		for (int n = 0; n < count; n++) {
+			//mostly regular, with jitter and the occasional long gap
+			t += 1000 + (n % 50 == 0 ? random.nextInt(100000000) : random.nextInt(21) - 10);
+			values[0] = n % 100 == 0 ? Integer.MIN_VALUE + 1 : -500000 + random.nextInt(1000);
+			values[1] = n % 7 == 0 ? SampleLog.INVALID : 3800000 + n;
+			values[2] = n / 1000;
+			w.append(t, values);
+		}
+		w.close();
+		assertRoundTrip(count);
+	}
+
+	@Test
+	public void roundTripEmpty() throws IOException {
+		new SampleLog.Writer(raw, CHANNELS, 1000000, 64).close();
+		assertRoundTrip(0);
+	}
+}
@@ -0,0 +1,131 @@
+package de.pirsoft.batterymon;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.List;
+
+import de.pirsoft.batterymon.DataLogger.DataEntry;
+import de.pirsoft.batterymon.SegmentedLog.Segment;
+import de.pirsoft.batterymon.SegmentedLog.SegmentState;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentedLogTest {
+	static final long SECOND = 1000;
+	static final long DAY = 24 * 3600 * SECOND;
+	static final SampleLog.Channel CHANNELS[] = {
+		new SampleLog.Channel(DataEntry.BatteryCurrent, SampleLog.KIND_NUMERIC, 1e-6f),
+	};
+
+	private File dir;
+	private long start;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("segments", "");
+		//noinspection ResultOfMethodCallIgnored
+		dir.delete();
+		Calendar c = Calendar.getInstance();
+		c.set(2020, Calendar.JANUARY, 1, 12, 0, 0);
+		c.set(Calendar.MILLISECOND, 0);
+		start = c.getTimeInMillis();
+	}
+
+	@After
+	public void tearDown() {
+		File files[] = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				//noinspection ResultOfMethodCallIgnored
+				f.delete();
+			}
+		}
+		//noinspection ResultOfMethodCallIgnored
+		dir.delete();
+	}
+
+	private static void append(SegmentedLog log, long from, long to) throws IOException {
+		int values[] = new int[1];
+		for (long t = from; t <= to; t += SECOND) {
+			values[0] = (int)(t / SECOND);
+			log.append(t, values);
+		}
+	}
+
+	private void assertSamples(long from, long to, long first, long last) throws IOException {
+		SampleLog.Cursor c = SegmentedLog.openRange(dir, from, to);
+		try {
+			for (long t = first; t <= last; t += SECOND) {
+				assertTrue("sample " + t, c.next());
+				assertEquals(t, c.getTimestamp());
+				assertEquals((int)(t / SECOND), c.getRaw(0));
+			}
+			assertFalse(c.next());
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Two days, the first one compressed, the second one still open.
+	 */
+	private void writeTwoDays() throws IOException {
+		SegmentedLog log = new SegmentedLog(dir, CHANNELS, 16);
+		append(log, start, start + 100 * SECOND);
+		append(log, start + DAY, start + DAY + 100 * SECOND);
+		//waits for the compression
+		log.close();
+	}
+
+	private void assertTwoDays() throws IOException {
+		List<Segment> segments = SegmentedLog.readManifest(dir);
+		assertEquals(2, segments.size());
+		assertEquals(SegmentState.compressed, segments.get(0).state);
+		assertEquals(start, segments.get(0).first);
+		assertEquals(start + 100 * SECOND, segments.get(0).last);
+		assertEquals(SegmentState.open, segments.get(1).state);
+		assertEquals(start + DAY, segments.get(1).first);
+		assertSamples(Long.MIN_VALUE, start + DAY - 1, start, start + 100 * SECOND);
+		assertSamples(start + DAY, Long.MAX_VALUE, start + DAY, start + DAY + 100 * SECOND);
+	}
+
+	@Test
+	public void readsOpenSegmentPastManifest() throws IOException {
+		SegmentedLog log = new SegmentedLog(dir, CHANNELS, 16);
+		append(log, start, start + 10 * SECOND);
+		log.flush();
+		//the manifest was written with the first sample only
+		assertEquals(start, SegmentedLog.readManifest(dir).get(0).last);
+		assertSamples(start + 5 * SECOND, Long.MAX_VALUE, start + 5 * SECOND, start + 10 * SECOND);
+		assertEquals(start + 10 * SECOND, SegmentedLog.getLastTimestamp(dir));
+		log.close();
+	}
+
+	@Test
+	public void rebuildsTruncatedManifest() throws IOException {
+		writeTwoDays();
+		new FileOutputStream(new File(dir, SegmentedLog.MANIFEST)).close();
+		assertTwoDays();
+	}
+
+	@Test
+	public void rebuildsMissingManifest() throws IOException {
+		writeTwoDays();
+		assertTrue(new File(dir, SegmentedLog.MANIFEST).delete());
+		assertTwoDays();
+		//and continues the open segment
+		SegmentedLog log = new SegmentedLog(dir, CHANNELS, 16);
+		append(log, start + DAY + 101 * SECOND, start + DAY + 110 * SECOND);
+		log.close();
+		assertEquals(2, SegmentedLog.readManifest(dir).size());
+		assertEquals(start + DAY + 110 * SECOND, SegmentedLog.getLastTimestamp(dir));
+	}
+}
@@ -0,0 +1,95 @@
+package de.pirsoft.batterymon;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WindowedStatsTest {
+	static final long DURATIONS[] = { 10, 60, 600 };
+	static final int CAPACITY = 100;
+
+	private final long timestamps[] = new long[20000];
+	private final float values[] = new float[timestamps.length];
+
+	/**
+	 * Compare every window with the statistics computed from scratch over
+	 * the samples it should hold: the ones newer than its duration, of at
+	 * most the last CAPACITY samples.
+	 */
+	private static void assertWindows(WindowedStats stats, long timestamps[], float values[], int count) {
+		long now = timestamps[count - 1];
+		for (int w = 0; w < DURATIONS.length; w++) {
+			int first = Math.max(0, count - CAPACITY);
+			while (first < count && timestamps[first] <= now - DURATIONS[w])
+				first++;
+			int n = count - first;
+			double sum = 0;
+			float min = Float.POSITIVE_INFINITY;
+			float max = Float.NEGATIVE_INFINITY;
+			for (int i = first; i < count; i++) {
+				sum += values[i];
+				min = Math.min(min, values[i]);
+				max = Math.max(max, values[i]);
+			}
+			double mean = sum / n;
+			double m2 = 0;
+			for (int i = first; i < count; i++)
+				m2 += (values[i] - mean) * (values[i] - mean);
+
+			WindowedStats.Window window = stats.getWindow(w);
+			String what = "window " + w + " at sample " + count;
+			assertEquals(what, n, window.getCount());
+			assertEquals(what, mean, window.getMean(), 1e-5);
+			if (n >= 2)
+				assertEquals(what, m2 / (n - 1), window.getVariance(), 1e-5);
+			else
+				assertTrue(what, Float.isNaN(window.getVariance()));
+			assertEquals(what, min, window.getMin(), 0);
+			assertEquals(what, max, window.getMax(), 0);
+		}
+	}
+
+	private void check(Random random, int maxStep, float offset, float noise) {
+		WindowedStats stats = new WindowedStats(DURATIONS, CAPACITY);
+		long t = 0;
+		for (int count = 1; count <= timestamps.length; count++) {
+			//sometimes several samples per ms, sometimes long gaps
+			t += random.nextInt(maxStep) + (random.nextInt(500) == 0 ? 1000 : 0);
+			float x = offset + noise * (float)random.nextGaussian();
+			timestamps[count - 1] = t;
+			values[count - 1] = x;
+			stats.add(t, x);
+			assertWindows(stats, timestamps, values, count);
+		}
+	}
+
+	@Test
+	public void matchesBruteForce() {
+		Random random = new Random(1);
+		//the longest window is limited by the capacity or by time
+		check(random, 3, 0, 1);
+		check(random, 20, 0, 1);
+		//a large mean with little noise, like a voltage
+		check(random, 10, 4.2f, 0.01f);
+	}
+
+	@Test
+	public void clears() {
+		WindowedStats stats = new WindowedStats(DURATIONS, CAPACITY);
+		for (int i = 0; i < 250; i++)
+			stats.add(i, i);
+		stats.clear();
+		for (int w = 0; w < DURATIONS.length; w++) {
+			assertEquals(0, stats.getWindow(w).getCount());
+			assertTrue(Float.isNaN(stats.getWindow(w).getMean()));
+			assertTrue(Float.isNaN(stats.getWindow(w).getMin()));
+		}
+		timestamps[0] = 1000;
+		values[0] = 5;
+		stats.add(1000, 5);
+		assertWindows(stats, timestamps, values, 1);
+	}
+}
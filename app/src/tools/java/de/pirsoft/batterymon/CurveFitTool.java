@@ -0,0 +1,386 @@
+package de.pirsoft.batterymon;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import de.pirsoft.batterymon.ChargingModel.CurveParams;
+import de.pirsoft.batterymon.ChargingModel.UBatLimitParams;
+
+/**
+ * Fits CurveParams and UBatLimitParams to a corpus of recorded logs, i.E.
+ * all logs of one battery batch.
+ *
+ * The logs are replayed through ChargingModel in parallel, one fork-join
+ * task per log, and the completed charge sessions collected as in
+ * ChargeSessionFitter: the battery voltage over the accumulated
+ * discharge, and the time remaining over the current in the battery
+ * voltage limited phase. All parameters are then fitted by
+ * Levenberg-Marquardt, starting from the stock values and from random
+ * perturbations of them, with the starts spread over all cores. The best
+ * fit is printed as Java field initializers, with the residual statistics
+ * of the fit and of the stock values for comparison.
+ *
+ * Runs on a plain JVM, see the README of the tools source set:
+ *   CurveFitTool [-starts n] [-seed n] log...
+ * where a log is anything ModelReplay.open() accepts.
+ */
+class CurveFitTool {
+	static final int SESSION_POINTS = 4096;
+	static final int MIN_SESSION_POINTS = 60;
+	/* the fits use at most this many points, evenly picked */
+	static final int MAX_FIT_POINTS = 20000;
+	static final int MAX_ITERATIONS = 200;
+	/* relative spread of the random starts, log-normal */
+	static final double START_SPREAD = 0.3;
+
+	/**
+	 * The points extracted from some logs.
+	 */
+	static class Corpus {
+		int files = 0;
+		int failedFiles = 0;
+		long samples = 0;
+		int sessions = 0;
+		final DoubleList discharge = new DoubleList();
+		final DoubleList voltage = new DoubleList();
+		final DoubleList limitCurrent = new DoubleList();
+		final DoubleList remaining = new DoubleList();
+
+		void add(Corpus o) {
+			files += o.files;
+			failedFiles += o.failedFiles;
+			samples += o.samples;
+			sessions += o.sessions;
+			discharge.addAll(o.discharge);
+			voltage.addAll(o.voltage);
+			limitCurrent.addAll(o.limitCurrent);
+			remaining.addAll(o.remaining);
+		}
+	}
+
+	static class DoubleList {
+		double values[] = new double[1024];
+		int size = 0;
+
+		void add(double v) {
+			if (size == values.length) {
+				double n[] = new double[values.length * 2];
+				System.arraycopy(values, 0, n, 0, size);
+				values = n;
+			}
+			values[size++] = v;
+		}
+
+		void addAll(DoubleList o) {
+			for (int i = 0; i < o.size; i++)
+				add(o.values[i]);
+		}
+
+		/**
+		 * @return at most max values, evenly picked
+		 */
+		double[] sample(int max) {
+			int n = Math.min(size, max);
+			double r[] = new double[n];
+			for (int i = 0; i < n; i++)
+				r[i] = values[(int)((long)i * size / n)];
+			return r;
+		}
+	}
+
+	/**
+	 * Replays a range of logs, splitting it until single logs are left.
+	 */
+	@SuppressWarnings("serial")
+	static class ExtractTask extends RecursiveTask<Corpus> {
+		private final List<File> files;
+		private final int from;
+		private final int to;
+
+		ExtractTask(List<File> files, int from, int to) {
+			this.files = files;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Corpus compute() {
+			if (to - from > 1) {
+				int mid = (from + to) / 2;
+				ExtractTask left = new ExtractTask(files, from, mid);
+				left.fork();
+				Corpus c = new ExtractTask(files, mid, to).compute();
+				c.add(left.join());
+				return c;
+			}
+			Corpus c = new Corpus();
+			for (int i = from; i < to; i++)
+				extract(files.get(i), c);
+			return c;
+		}
+	}
+
+	static void extract(File file, final Corpus corpus) {
+		final ChargeSession session = new ChargeSession(SESSION_POINTS);
+		ChargingModel model = new ChargingModel();
+		//the sessions are to be fitted with the default curve, not one
+		//the model learned from earlier sessions of the same file
+		model.setLearning(false);
+		ModelReplay replay = new ModelReplay(model);
+		try {
+			SampleLog.Cursor cursor = ModelReplay.open(file);
+			try {
+				replay.replay(cursor, new ModelReplay.Listener() {
+					@Override
+					public void onSample(SampleSnapshot sample) {
+						if (session.update(sample, sample.getModelState()))
+							addSession(session, corpus);
+					}
+				});
+			} finally {
+				cursor.close();
+			}
+			corpus.files++;
+			corpus.samples += replay.getSamples();
+		} catch (IOException e) {
+			System.err.println("Cannot read " + file + ": " + e.getMessage());
+			corpus.failedFiles++;
+		}
+	}
+
+	static void addSession(ChargeSession session, Corpus corpus) {
+		int count = session.getCount();
+		double total = session.getTotalCharge();
+		if (count < MIN_SESSION_POINTS || total <= 0 || total > ChargeSessionFitter.MAX_CHARGE)
+			return;
+		corpus.sessions++;
+		for (int i = 0; i < count; i++) {
+			corpus.discharge.add(session.getDischarge(i));
+			corpus.voltage.add(session.getVoltage(i));
+			if (session.isLimited(i)) {
+				corpus.limitCurrent.add(session.getCurrent(i));
+				corpus.remaining.add(session.getRemaining(i));
+			}
+		}
+	}
+
+	/* the curves in double precision, for the numerical derivatives. Same
+	   as ChargingModel.U_bat and limitSeconds/limitUncertainty. */
+
+	static class CurveFunction implements LevenbergMarquardt.Function {
+		public int getParameterCount() {
+			return 16;
+		}
+
+		public double eval(double p[], double I_acc) {
+			I_acc /= 3600;
+			return p[0]
+				+ p[1] / Math.pow(p[5] + p[2] * Math.exp(-p[3] * I_acc), 1/p[4])
+				+ p[6] / Math.pow(p[10] + p[7] * Math.exp(-p[8] * I_acc), 1/p[9])
+				+ p[11] / Math.pow(p[15] + p[12] * Math.exp(-p[13] * I_acc), 1/p[14]);
+		}
+
+		static double[] toArray(CurveParams cp) {
+			return new double[] { cp.A,
+				cp.K1, cp.Q1, cp.B1, cp.v1, cp.C1,
+				cp.K2, cp.Q2, cp.B2, cp.v2, cp.C2,
+				cp.K3, cp.Q3, cp.B3, cp.v3, cp.C3 };
+		}
+
+		static CurveParams fromArray(double p[]) {
+			CurveParams cp = new CurveParams();
+			cp.A = (float)p[0];
+			cp.K1 = (float)p[1]; cp.Q1 = (float)p[2]; cp.B1 = (float)p[3]; cp.v1 = (float)p[4]; cp.C1 = (float)p[5];
+			cp.K2 = (float)p[6]; cp.Q2 = (float)p[7]; cp.B2 = (float)p[8]; cp.v2 = (float)p[9]; cp.C2 = (float)p[10];
+			cp.K3 = (float)p[11]; cp.Q3 = (float)p[12]; cp.B3 = (float)p[13]; cp.v3 = (float)p[14]; cp.C3 = (float)p[15];
+			return cp;
+		}
+	}
+
+	/* a, b, c, d, e */
+	static class LimitFunction implements LevenbergMarquardt.Function {
+		public int getParameterCount() {
+			return 5;
+		}
+
+		public double eval(double p[], double current) {
+			return Math.log(Math.pow(current, p[3]) * p[4] + current + p[0]) / p[1] + p[2];
+		}
+	}
+
+	/* sa, sb, sc */
+	static class UncertaintyFunction implements LevenbergMarquardt.Function {
+		public int getParameterCount() {
+			return 3;
+		}
+
+		public double eval(double p[], double current) {
+			return Math.log(current + p[0]) / p[1] + p[2];
+		}
+	}
+
+	/**
+	 * One start of a fit.
+	 */
+	@SuppressWarnings("serial")
+	static class FitTask extends RecursiveTask<LevenbergMarquardt.Result> {
+		private final LevenbergMarquardt.Function f;
+		private final double xs[];
+		private final double ys[];
+		private final double start[];
+
+		FitTask(LevenbergMarquardt.Function f, double xs[], double ys[], double start[]) {
+			this.f = f;
+			this.xs = xs;
+			this.ys = ys;
+			this.start = start;
+		}
+
+		@Override
+		protected LevenbergMarquardt.Result compute() {
+			return new LevenbergMarquardt(f, xs, ys).fit(start, MAX_ITERATIONS);
+		}
+	}
+
+	/**
+	 * Fit from the stock values and starts-1 perturbations of them, in
+	 * parallel.
+	 * @return the best result
+	 */
+	@SuppressWarnings("serial")
+	static LevenbergMarquardt.Result multiStart(ForkJoinPool pool,
+			LevenbergMarquardt.Function f, double xs[], double ys[],
+			double stock[], int starts, long seed) {
+		Random random = new Random(seed);
+		final List<FitTask> tasks = new ArrayList<>();
+		for (int s = 0; s < starts; s++) {
+			double start[] = stock.clone();
+			if (s > 0) {
+				for (int j = 0; j < start.length; j++)
+					start[j] *= Math.exp(START_SPREAD * random.nextGaussian());
+			}
+			tasks.add(new FitTask(f, xs, ys, start));
+		}
+		pool.invoke(new RecursiveTask<Void>() {
+			@Override
+			protected Void compute() {
+				invokeAll(tasks);
+				return null;
+			}
+		});
+		LevenbergMarquardt.Result best = null;
+		for (FitTask t : tasks) {
+			LevenbergMarquardt.Result r = t.join();
+			if (best == null || r.sse < best.sse)
+				best = r;
+		}
+		return best;
+	}
+
+	static String residualStatistics(LevenbergMarquardt.Function f, double p[],
+			double xs[], double ys[], String unit) {
+		double sum = 0;
+		double sumSquares = 0;
+		double max = 0;
+		int n = 0;
+		for (int i = 0; i < xs.length; i++) {
+			double r = ys[i] - f.eval(p, xs[i]);
+			if (Double.isNaN(r))
+				continue;
+			sum += r;
+			sumSquares += r * r;
+			max = Math.max(max, Math.abs(r));
+			n++;
+		}
+		if (n == 0)
+			return "no usable points";
+		return String.format(Locale.US, "%d points, mean %.4g%s, rms %.4g%s, max %.4g%s%s",
+			n, sum / n, unit, Math.sqrt(sumSquares / n), unit, max, unit,
+			n < xs.length ? ", " + (xs.length - n) + " points not usable" : "");
+	}
+
+	static void printParams(String names[], double p[]) {
+		for (int i = 0; i < names.length; i++)
+			System.out.println("\t\tfloat " + names[i] + " = " + (float)p[i] + "f;");
+	}
+
+	public static void main(String args[]) throws Exception {
+		int starts = 4 * Runtime.getRuntime().availableProcessors();
+		long seed = 1;
+		List<File> files = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-starts") && i + 1 < args.length)
+				starts = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-seed") && i + 1 < args.length)
+				seed = Long.parseLong(args[++i]);
+			else
+				files.add(new File(args[i]));
+		}
+		if (files.isEmpty()) {
+			System.err.println("usage: CurveFitTool [-starts n] [-seed n] log...");
+			System.exit(1);
+		}
+
+		ForkJoinPool pool = new ForkJoinPool();
+		long t0 = System.nanoTime();
+		Corpus corpus = pool.invoke(new ExtractTask(files, 0, files.size()));
+		long t1 = System.nanoTime();
+		System.out.println(String.format(Locale.US,
+			"%d logs (%d unreadable), %d samples, %d complete charge sessions, extracted in %.1fs",
+			corpus.files, corpus.failedFiles, corpus.samples, corpus.sessions, (t1 - t0) * 1e-9));
+		if (corpus.sessions == 0)
+			return;
+
+		double q[] = corpus.discharge.sample(MAX_FIT_POINTS);
+		double v[] = corpus.voltage.sample(MAX_FIT_POINTS);
+		CurveFunction curveFunction = new CurveFunction();
+		double stockCurve[] = CurveFunction.toArray(new CurveParams());
+		LevenbergMarquardt.Result curve = multiStart(pool, curveFunction, q, v, stockCurve, starts, seed);
+		long t2 = System.nanoTime();
+		System.out.println();
+		System.out.println(String.format(Locale.US, "CurveParams, %d starts in %.1fs, best after %d iterations:",
+			starts, (t2 - t1) * 1e-9, curve.iterations));
+		System.out.println("  fitted: " + residualStatistics(curveFunction, curve.params, q, v, "V"));
+		System.out.println("  stock:  " + residualStatistics(curveFunction, stockCurve, q, v, "V"));
+		if (!ChargeSessionFitter.plausible(CurveFunction.fromArray(curve.params)))
+			System.out.println("  warning: the fitted curve fails the plausibility check of ChargeSessionFitter");
+		printParams(new String[] { "A", "K1", "Q1", "B1", "v1", "C1", "K2", "Q2", "B2", "v2", "C2",
+			"K3", "Q3", "B3", "v3", "C3" }, curve.params);
+
+		if (corpus.limitCurrent.size == 0) {
+			System.out.println();
+			System.out.println("UBatLimitParams: no samples in the battery voltage limited phase");
+			return;
+		}
+		UBatLimitParams stock = new UBatLimitParams();
+		double current[] = corpus.limitCurrent.sample(MAX_FIT_POINTS);
+		double remaining[] = corpus.remaining.sample(MAX_FIT_POINTS);
+		LimitFunction limitFunction = new LimitFunction();
+		double stockLimit[] = { stock.a, stock.b, stock.c, stock.d, stock.e };
+		LevenbergMarquardt.Result limit = multiStart(pool, limitFunction, current, remaining, stockLimit, starts, seed);
+
+		//the uncertainty is fitted to the size of the remaining residuals
+		double error[] = new double[current.length];
+		for (int i = 0; i < current.length; i++)
+			error[i] = Math.abs(remaining[i] - limitFunction.eval(limit.params, current[i]));
+		UncertaintyFunction uncertaintyFunction = new UncertaintyFunction();
+		double stockUncertainty[] = { stock.sa, stock.sb, stock.sc };
+		LevenbergMarquardt.Result uncertainty = multiStart(pool, uncertaintyFunction, current, error,
+			stockUncertainty, starts, seed);
+		long t3 = System.nanoTime();
+
+		System.out.println();
+		System.out.println(String.format(Locale.US, "UBatLimitParams, %d starts in %.1fs:", starts, (t3 - t2) * 1e-9));
+		System.out.println("  fitted: " + residualStatistics(limitFunction, limit.params, current, remaining, "s"));
+		System.out.println("  stock:  " + residualStatistics(limitFunction, stockLimit, current, remaining, "s"));
+		System.out.println("  uncertainty: " + residualStatistics(uncertaintyFunction, uncertainty.params, current, error, "s"));
+		printParams(new String[] { "a", "b", "c", "d", "e" }, limit.params);
+		printParams(new String[] { "sa", "sb", "sc" }, uncertainty.params);
+	}
+}
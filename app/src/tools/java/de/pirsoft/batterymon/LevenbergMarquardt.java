@@ -0,0 +1,177 @@
+package de.pirsoft.batterymon;
+
+/**
+ * Levenberg-Marquardt least squares fit of y = f(p, x) for scalar x and
+ * y, with a forward difference Jacobian.
+ *
+ * An instance holds the work arrays of one fit and is not thread safe;
+ * use one per thread.
+ */
+class LevenbergMarquardt {
+	interface Function {
+		int getParameterCount();
+
+		/**
+		 * @return f(p, x), NaN if p is not usable at x
+		 */
+		double eval(double p[], double x);
+	}
+
+	static class Result {
+		final double params[];
+		final double sse;
+		final int iterations;
+
+		Result(double params[], double sse, int iterations) {
+			this.params = params;
+			this.sse = sse;
+			this.iterations = iterations;
+		}
+	}
+
+	static final double INITIAL_LAMBDA = 1e-3;
+	static final double MAX_LAMBDA = 1e16;
+	static final double TOLERANCE = 1e-12;
+
+	private final Function f;
+	private final double xs[];
+	private final double ys[];
+	private final int n;
+	private final double residuals[];
+	private final double jacobian[][];
+	private final double jtj[][];
+	private final double jtr[];
+	private final double a[][];
+	private final double delta[];
+	private final double trial[];
+	private final double shifted[];
+
+	LevenbergMarquardt(Function f, double xs[], double ys[]) {
+		this.f = f;
+		this.xs = xs;
+		this.ys = ys;
+		n = f.getParameterCount();
+		residuals = new double[xs.length];
+		jacobian = new double[xs.length][n];
+		jtj = new double[n][n];
+		jtr = new double[n];
+		a = new double[n][n + 1];
+		delta = new double[n];
+		trial = new double[n];
+		shifted = new double[n];
+	}
+
+	/**
+	 * @return the sum of squared residuals at p, infinite if f is NaN
+	 * anywhere
+	 */
+	double sse(double p[]) {
+		double sum = 0;
+		for (int i = 0; i < xs.length; i++) {
+			double r = ys[i] - f.eval(p, xs[i]);
+			if (Double.isNaN(r))
+				return Double.POSITIVE_INFINITY;
+			sum += r * r;
+		}
+		return sum;
+	}
+
+	Result fit(double start[], int maxIterations) {
+		double p[] = start.clone();
+		double sse = sse(p);
+		double lambda = INITIAL_LAMBDA;
+		int iteration;
+		for (iteration = 0; iteration < maxIterations && !Double.isInfinite(sse); iteration++) {
+			computeJacobian(p);
+			boolean improved = false;
+			while (!improved && lambda < MAX_LAMBDA) {
+				if (solve(lambda)) {
+					for (int j = 0; j < n; j++)
+						trial[j] = p[j] + delta[j];
+					double trialSse = sse(trial);
+					if (trialSse < sse) {
+						improved = true;
+						boolean converged = sse - trialSse <= TOLERANCE * sse;
+						System.arraycopy(trial, 0, p, 0, n);
+						sse = trialSse;
+						lambda = Math.max(lambda / 10, 1e-12);
+						if (converged)
+							return new Result(p, sse, iteration + 1);
+						break;
+					}
+				}
+				lambda *= 10;
+			}
+			if (!improved)
+				break;
+		}
+		return new Result(p, sse, iteration);
+	}
+
+	private void computeJacobian(double p[]) {
+		for (int i = 0; i < xs.length; i++)
+			residuals[i] = ys[i] - f.eval(p, xs[i]);
+		System.arraycopy(p, 0, shifted, 0, n);
+		for (int j = 0; j < n; j++) {
+			double h = 1e-7 * Math.max(Math.abs(p[j]), 1e-9);
+			shifted[j] = p[j] + h;
+			for (int i = 0; i < xs.length; i++) {
+				double d = (f.eval(shifted, xs[i]) - (ys[i] - residuals[i])) / h;
+				jacobian[i][j] = Double.isNaN(d) ? 0 : d;
+			}
+			shifted[j] = p[j];
+		}
+		for (int j = 0; j < n; j++) {
+			double g = 0;
+			for (int i = 0; i < xs.length; i++)
+				g += jacobian[i][j] * residuals[i];
+			jtr[j] = g;
+			for (int k = j; k < n; k++) {
+				double s = 0;
+				for (int i = 0; i < xs.length; i++)
+					s += jacobian[i][j] * jacobian[i][k];
+				jtj[j][k] = s;
+				jtj[k][j] = s;
+			}
+		}
+	}
+
+	/**
+	 * Solve (J'J + lambda diag(J'J)) delta = J'r by Gaussian elimination.
+	 * @return false if the system is singular
+	 */
+	private boolean solve(double lambda) {
+		for (int j = 0; j < n; j++) {
+			for (int k = 0; k < n; k++)
+				a[j][k] = jtj[j][k];
+			a[j][j] += lambda * Math.max(jtj[j][j], 1e-30);
+			a[j][n] = jtr[j];
+		}
+		for (int col = 0; col < n; col++) {
+			int pivot = col;
+			for (int row = col + 1; row < n; row++) {
+				if (Math.abs(a[row][col]) > Math.abs(a[pivot][col]))
+					pivot = row;
+			}
+			if (!(Math.abs(a[pivot][col]) > 0))
+				return false;
+			double t[] = a[col];
+			a[col] = a[pivot];
+			a[pivot] = t;
+			for (int row = col + 1; row < n; row++) {
+				double factor = a[row][col] / a[col][col];
+				for (int k = col; k <= n; k++)
+					a[row][k] -= factor * a[col][k];
+			}
+		}
+		for (int row = n - 1; row >= 0; row--) {
+			double s = a[row][n];
+			for (int k = row + 1; k < n; k++)
+				s -= a[row][k] * delta[k];
+			delta[row] = s / a[row][row];
+			if (Double.isNaN(delta[row]) || Double.isInfinite(delta[row]))
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,61 @@
+package de.pirsoft.batterymon;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Replays recorded logs through ChargingModel with ModelReplay.
+ *
+ * Runs on a plain JVM, see the README of the tools source set:
+ *   ModelReplayTool [-q] log...
+ * prints "timestamp state secondsRemaining uncertainty" per sample, and
+ * the number of samples and samples per second to stderr. A log is
+ * anything ModelReplay.open() accepts.
+ */
+class ModelReplayTool {
+	public static void main(String args[]) throws IOException {
+		boolean quiet = false;
+		final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, "US-ASCII"), 65536);
+		final StringBuilder sb = new StringBuilder();
+		ModelReplay replay = new ModelReplay(new ChargingModel());
+		ModelReplay.Listener printer = new ModelReplay.Listener() {
+			@Override
+			public void onSample(SampleSnapshot sample) {
+				sb.setLength(0);
+				sb.append(sample.getTimestamp()).append(' ')
+					.append(sample.getModelState().name()).append(' ')
+					.append(sample.getSecondsRemaining()).append(' ')
+					.append(sample.getSecondsRemainingUncertainty()).append('\n');
+				try {
+					out.append(sb);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		int files = 0;
+		for (String arg : args) {
+			if (arg.equals("-q")) {
+				quiet = true;
+				continue;
+			}
+			SampleLog.Cursor cursor = ModelReplay.open(new File(arg));
+			try {
+				replay.replay(cursor, quiet ? null : printer);
+			} finally {
+				cursor.close();
+			}
+			files++;
+		}
+		out.flush();
+		if (files == 0) {
+			System.err.println("usage: ModelReplayTool [-q] log...");
+			System.exit(1);
+		}
+		System.err.println(replay.getSamples() + " samples, " +
+			Math.round(replay.getSamplesPerSecond()) + " samples/s");
+	}
+}